@@ -20,6 +20,15 @@ DB_FILE = "stomp_server.db"              # DO NOT CHANGE!
 db_lock = threading.Lock()
 db_conn = None
 
+# A batch request is BATCH_PREFIX followed by statements separated by BATCH_SEPARATOR
+# (ASCII record separator), all of them are executed in a single transaction.
+BATCH_PREFIX = "BATCH\x1e"
+BATCH_SEPARATOR = "\x1e"
+# A query sent as TYPED_PREFIX + sql is answered in the typed row format:
+# SUCCESS;<column count>;<field>... where a field is a type letter (s/i/r/b/n), the byte
+# length of the value, a colon and the UTF-8 bytes (blobs in hex, NULL has no length or value).
+TYPED_PREFIX = "TYPED\x1e"
+
 
 def recv_null_terminated(sock: socket.socket) -> str:
     data = b""
@@ -77,6 +86,37 @@ def execute_sql_command(sql_command: str) -> str:
             return f"ERROR:{e}"
 
 
+def execute_sql_batch(statements: list) -> str:
+    """
+    Executes all the statements in one transaction (one commit for the whole batch).
+    Each statement runs inside its own savepoint, so a failing statement is rolled back
+    on its own and does not take the rest of the batch with it.
+    Returns SUCCESS:<count> or ERROR:<failed>/<count>:<index>:<error>|<index>:<error>...
+    """
+    if db_conn is None:
+        return "ERROR:Database not initialized"
+    with db_lock:
+        errors = []
+        try:
+            db_conn.execute("BEGIN")
+            for i, statement in enumerate(statements):
+                db_conn.execute("SAVEPOINT stmt")
+                try:
+                    db_conn.execute(statement)
+                    db_conn.execute("RELEASE SAVEPOINT stmt")
+                except Exception as e:
+                    db_conn.execute("ROLLBACK TO SAVEPOINT stmt")
+                    db_conn.execute("RELEASE SAVEPOINT stmt")
+                    errors.append(f"{i}:{e}")
+            db_conn.commit()
+        except Exception as e:
+            db_conn.rollback()
+            return f"ERROR:{len(statements)}/{len(statements)}:{e}"
+        if errors:
+            return f"ERROR:{len(errors)}/{len(statements)}:" + "|".join(errors)
+        return f"SUCCESS:{len(statements)}"
+
+
 def execute_sql_query(sql_query: str) -> str:
     if db_conn is None:
         return "ERROR:Database not initialized"
@@ -94,6 +134,37 @@ def execute_sql_query(sql_query: str) -> str:
             return f"ERROR:{e}"
 
 
+def encode_typed_field(value) -> bytes:
+    if value is None:
+        return b"n"
+    if isinstance(value, bool) or isinstance(value, int):
+        kind, data = b"i", str(int(value)).encode("utf-8")
+    elif isinstance(value, float):
+        kind, data = b"r", repr(value).encode("utf-8")
+    elif isinstance(value, (bytes, bytearray, memoryview)):
+        kind, data = b"b", bytes(value).hex().encode("ascii")
+    else:
+        kind, data = b"s", str(value).encode("utf-8")
+    return kind + str(len(data)).encode("ascii") + b":" + data
+
+
+def execute_sql_typed_query(sql_query: str) -> bytes:
+    if db_conn is None:
+        return b"ERROR:Database not initialized"
+    with db_lock:
+        try:
+            cur = db_conn.execute(sql_query)
+            rows = cur.fetchall()
+            columns = len(cur.description) if cur.description else 0
+            parts = [b"SUCCESS;%d;" % columns]
+            for row in rows:
+                for value in row:
+                    parts.append(encode_typed_field(value))
+            return b"".join(parts)
+        except Exception as e:
+            return f"ERROR:{e}".encode("utf-8")
+
+
 def handle_client(client_socket: socket.socket, addr):
     print(f"[{SERVER_NAME}] Client connected from {addr}")
 
@@ -106,12 +177,19 @@ def handle_client(client_socket: socket.socket, addr):
             print(f"[{SERVER_NAME}] Received:")
             print(message)
             stripped = message.strip()
-            if stripped.upper().startswith("SELECT"):
+            if message.startswith(TYPED_PREFIX):
+                response = execute_sql_typed_query(message[len(TYPED_PREFIX):].strip())
+            elif message.startswith(BATCH_PREFIX):
+                statements = [s.strip() for s in message[len(BATCH_PREFIX):].split(BATCH_SEPARATOR)]
+                response = execute_sql_batch([s for s in statements if s])
+            elif stripped.upper().startswith("SELECT"):
                 response = execute_sql_query(stripped)
             else:
                 response = execute_sql_command(stripped)
 
-            client_socket.sendall((response + "\0").encode("utf-8"))
+            if isinstance(response, str):
+                response = response.encode("utf-8")
+            client_socket.sendall(response + b"\0")
 
     except Exception as e:
         print(f"[{SERVER_NAME}] Error handling client {addr}: {e}")
@@ -1,5 +1,8 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +14,23 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * add all the remaining bytes of the given buffer to the decoding process.
+     * the default implementation falls back to {@link #decodeNextByte(byte)},
+     * codecs with a simple frame delimiter should override it and scan in bulk.
+     *
+     * @param buffer the bytes to consider, consumed from position up to limit
+     * @param consumer receives every message completed by these bytes, in order
+     */
+    default void decodeNextBytes(ByteBuffer buffer, Consumer<T> consumer) {
+        while (buffer.hasRemaining()) {
+            T nextMessage = decodeNextByte(buffer.get());
+            if (nextMessage != null) {
+                consumer.accept(nextMessage);
+            }
+        }
+    }
+
     /**
      * encodes the given message to bytes array
      *
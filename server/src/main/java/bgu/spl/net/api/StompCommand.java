@@ -0,0 +1,23 @@
+package bgu.spl.net.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public enum StompCommand {
+    CONNECT, STOMP, SEND, SUBSCRIBE, UNSUBSCRIBE, ACK, NACK, BEGIN, COMMIT, ABORT, DISCONNECT, UNKNOWN;
+
+    private static final Map<String, StompCommand> BY_NAME = new HashMap<>();
+
+    static {
+        for (StompCommand command : values()) {
+            if (command != UNKNOWN) BY_NAME.put(command.name(), command);
+        }
+    }
+
+    /**
+     * @return the command with the given name, or UNKNOWN if there is none
+     */
+    public static StompCommand of(String name) {
+        return BY_NAME.getOrDefault(name, UNKNOWN);
+    }
+}
@@ -0,0 +1,131 @@
+package bgu.spl.net.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A STOMP frame sent by a client, parsed in a single pass over its bytes.
+ * Header values are decoded eagerly (they are short and almost always read),
+ * the body is kept as raw bytes and only decoded to a String on demand.
+ */
+public class StompFrame {
+
+    private static final byte[] NO_BODY = new byte[0];
+
+    private final StompCommand command;
+    private final String commandName;
+    private final Map<String, String> headers;
+    private final byte[] body;
+    private String bodyString = null;
+
+    private StompFrame(String commandName, Map<String, String> headers, byte[] body) {
+        this.command = StompCommand.of(commandName);
+        this.commandName = commandName;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * parses the frame found in bytes[from, to), not including the NUL terminator.
+     * leading EOLs (heart-beats from the previous frame) are skipped, CRLF line
+     * endings are accepted and the first occurrence of a repeated header wins.
+     * the given array is not retained, so the caller may reuse it.
+     */
+    public static StompFrame parse(byte[] bytes, int from, int to) {
+        int pos = from;
+        while (pos < to && (bytes[pos] == '\n' || bytes[pos] == '\r')) pos++;
+
+        int eol = indexOf(bytes, '\n', pos, to);
+        String commandName = line(bytes, pos, eol);
+        pos = eol + 1;
+
+        Map<String, String> headers = new HashMap<>();
+        while (pos < to) {
+            eol = indexOf(bytes, '\n', pos, to);
+            int lineEnd = trimCR(bytes, pos, eol);
+            if (lineEnd == pos) { //the empty line that separates the headers from the body
+                pos = eol + 1;
+                break;
+            }
+            int colon = indexOf(bytes, ':', pos, lineEnd);
+            if (colon < lineEnd) {
+                String name = new String(bytes, pos, colon - pos, StandardCharsets.UTF_8);
+                String value = new String(bytes, colon + 1, lineEnd - colon - 1, StandardCharsets.UTF_8);
+                headers.putIfAbsent(name, value);
+            }
+            pos = eol + 1;
+        }
+
+        byte[] body = pos < to ? Arrays.copyOfRange(bytes, pos, to) : NO_BODY;
+        return new StompFrame(commandName, headers, body);
+    }
+
+    /**
+     * parses a frame that was already decoded to a String (used by the per-byte decoding path).
+     */
+    public static StompFrame parse(String frame) {
+        byte[] bytes = frame.getBytes(StandardCharsets.UTF_8);
+        int to = bytes.length;
+        if (to > 0 && bytes[to - 1] == '\u0000') to--;
+        return parse(bytes, 0, to);
+    }
+
+    public StompCommand getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the command line exactly as the client sent it (useful when it is UNKNOWN)
+     */
+    public String getCommandName() {
+        return commandName;
+    }
+
+    /**
+     * @return the value of the given header or null if the frame does not have it
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * @return a read only view of the body bytes, the frame's own copy is not duplicated
+     */
+    public ByteBuffer getBody() {
+        return ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
+
+    public int getBodyLength() {
+        return body.length;
+    }
+
+    public String getBodyString() {
+        if (bodyString == null) {
+            bodyString = new String(body, StandardCharsets.UTF_8);
+        }
+        return bodyString;
+    }
+
+    private static String line(byte[] bytes, int from, int eol) {
+        return new String(bytes, from, trimCR(bytes, from, eol) - from, StandardCharsets.UTF_8);
+    }
+
+    private static int trimCR(byte[] bytes, int from, int eol) {
+        return eol > from && bytes[eol - 1] == '\r' ? eol - 1 : eol;
+    }
+
+    private static int indexOf(byte[] bytes, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == c) return i;
+        }
+        return to;
+    }
+}
@@ -9,10 +9,24 @@ public interface StompMessagingProtocol<T>  {
 	**/
     void start(int connectionId, ConnectionsImpl<T> connections);
     
-    void process(String message);
+    void process(StompFrame frame);
+
+    /**
+     * Process a frame that was decoded to a String, parses it and delegates to {@link #process(StompFrame)}
+     */
+    default void process(String message) {
+        process(StompFrame.parse(message));
+    }
 	
 	/**
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * Called once when the connection is closed, also when it closes without a DISCONNECT
+     * (the client went away or stopped sending heart-beats). Called on the thread that processes frames.
+     */
+    default void connectionClosed() {
+    }
 }
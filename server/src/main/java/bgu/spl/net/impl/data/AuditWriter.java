@@ -0,0 +1,180 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * A bounded write-behind queue for audit statements (registrations, logins, logouts, file uploads).
+ * Callers only enqueue, a background thread takes the statements in submission order and hands
+ * them to the sink in batches, a batch is flushed once it has {@code batchSize} statements or
+ * once {@code maxDelayMillis} passed since its first statement was taken.
+ */
+public class AuditWriter {
+
+	/**
+	 * What {@link #submit} does when the queue is full.
+	 * BLOCK waits for room (back pressure, nothing is lost and the order is kept),
+	 * DROP discards the new statement and counts it.
+	 */
+	public enum OverflowPolicy {
+		BLOCK, DROP
+	}
+
+	private final BlockingQueue<String> queue;
+	private final int batchSize;
+	private final long maxDelayMillis;
+	private final OverflowPolicy overflowPolicy;
+	private final Consumer<List<String>> sink;
+	private final Thread writer;
+	private volatile boolean closed = false;
+	// submit holds the read lock from its closed check until the statement is queued and close takes the
+	// write lock to set closed, so nothing is queued after the writer saw closed and drained the queue
+	private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+	private final AtomicLong submitted = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong batches = new AtomicLong(0);
+	private final Object progress = new Object();
+	private long completed = 0; // guarded by progress
+
+	public AuditWriter(int capacity, int batchSize, long maxDelayMillis, OverflowPolicy overflowPolicy,
+			Consumer<List<String>> sink) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.batchSize = batchSize;
+		this.maxDelayMillis = maxDelayMillis;
+		this.overflowPolicy = overflowPolicy;
+		this.sink = sink;
+		this.writer = new Thread(this::writeLoop, "audit-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Queue a statement to be written by the background thread
+	 * @return false if the statement was dropped (queue full with the DROP policy, or writer closed)
+	 */
+	public boolean submit(String sql) {
+		boolean queued;
+		closeLock.readLock().lock();
+		try {
+			if (closed) {
+				queued = false;
+			} else if (overflowPolicy == OverflowPolicy.BLOCK) {
+				try {
+					queue.put(sql);
+					queued = true;
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					queued = false;
+				}
+			} else {
+				queued = queue.offer(sql);
+			}
+		} finally {
+			closeLock.readLock().unlock();
+		}
+		if (!queued) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		submitted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Wait until every statement submitted before this call was handed to the sink
+	 */
+	public void flush() {
+		long target = submitted.get();
+		synchronized (progress) {
+			while (completed < target && writer.isAlive()) {
+				try {
+					progress.wait(100);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting statements, write everything that is still queued and wait for the writer to finish
+	 */
+	public void close() {
+		// waits for the submits in progress, a blocked one gets room as the writer keeps draining
+		closeLock.writeLock().lock();
+		try {
+			closed = true;
+		} finally {
+			closeLock.writeLock().unlock();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeLoop() {
+		List<String> batch = new ArrayList<>(batchSize);
+		while (!closed || !queue.isEmpty()) {
+			try {
+				String first = queue.poll(maxDelayMillis, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.currentTimeMillis() + maxDelayMillis;
+				while (batch.size() < batchSize) {
+					queue.drainTo(batch, batchSize - batch.size());
+					long remaining = deadline - System.currentTimeMillis();
+					if (batch.size() >= batchSize || remaining <= 0 || closed) {
+						break;
+					}
+					String next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException ex) {
+				// keep going, we only stop once closed and drained
+			}
+			if (!batch.isEmpty()) {
+				write(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(List<String> batch) {
+		try {
+			sink.accept(batch);
+		} catch (RuntimeException ex) {
+			System.err.println("Audit write failed: " + ex.getMessage());
+		} finally {
+			batches.incrementAndGet();
+			synchronized (progress) {
+				completed += batch.size();
+				progress.notifyAll();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		long done;
+		synchronized (progress) {
+			done = completed;
+		}
+		return String.format("submitted=%d written=%d pending=%d batches=%d dropped=%d policy=%s",
+				submitted.get(), done, queue.size(), batches.get(), dropped.get(), overflowPolicy);
+	}
+}
@@ -1,16 +1,30 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 public class Database {
+	// same format and time zone as SQLite's datetime('now')
+	private static final DateTimeFormatter SQL_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+	// must match BATCH_PREFIX and BATCH_SEPARATOR in sql_server.py
+	private static final String BATCH_PREFIX = "BATCH\u001e";
+	private static final char BATCH_SEPARATOR = '\u001e';
+	// must match TYPED_PREFIX in sql_server.py, asks for the typed row format read by SqlRowReader
+	private static final String TYPED_PREFIX = "TYPED\u001e";
+
 	private final ConcurrentHashMap<String, User> userMap;
 	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
 	private final String sqlHost;
 	private final int sqlPort;
+	private final SqlConnectionPool sqlPool;
+	private final AuditWriter auditWriter;
+	private final int reportPageSize = Integer.getInteger("sql.reportPageSize", 500);
+	private final int loadPageSize = Integer.getInteger("sql.loadPageSize", 10000);
 
 	private Database() {
 		userMap = new ConcurrentHashMap<>();
@@ -18,6 +32,23 @@ public class Database {
 		// SQL server connection details
 		this.sqlHost = "127.0.0.1";
 		this.sqlPort = 7778;
+		this.sqlPool = new SqlConnectionPool(sqlHost, sqlPort,
+				Integer.getInteger("sql.poolSize", 4),
+				Long.getLong("sql.acquireTimeoutMillis", 5000),
+				Long.getLong("sql.idleCheckMillis", 30000),
+				Integer.getInteger("sql.readTimeoutMillis", 10000));
+		// registrations, logins, logouts and file uploads are written behind, off the protocol threads
+		this.auditWriter = new AuditWriter(
+				Integer.getInteger("sql.auditCapacity", 10000),
+				Integer.getInteger("sql.auditBatchSize", 100),
+				Long.getLong("sql.auditMaxDelayMillis", 50),
+				AuditWriter.OverflowPolicy.valueOf(System.getProperty("sql.auditOverflow", "BLOCK")),
+				this::writeAuditBatch);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			auditWriter.close();
+			sqlPool.close();
+		}, "database-shutdown"));
+		loadUsers();
 	}
 
 	public static Database getInstance() {
@@ -25,40 +56,93 @@ public class Database {
 	}
 
 	/**
-	 * Execute SQL query and return result
+	 * Execute SQL statement and return result, over a pooled connection to the SQL server.
+	 * Statements here change data, so a failed exchange is not retried (it may have run already)
 	 * @param sql SQL query string
 	 * @return Result string from SQL server
 	 */
 	private String executeSQL(String sql) {
-		try (Socket socket = new Socket(sqlHost, sqlPort);
-			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-			
-			// Send SQL with null terminator
-			out.print(sql + '\0');
-			out.flush();
-			
-			// Read response until null terminator
-			StringBuilder response = new StringBuilder();
-			int ch;
-			while ((ch = in.read()) != -1 && ch != '\0') {
-				response.append((char) ch);
-			}
-			
-			return response.toString();
-			
+		try {
+			return sqlPool.execute(sql, false);
 		} catch (Exception e) {
 			System.err.println("SQL Error: " + e.getMessage());
 			return "ERROR:" + e.getMessage();
 		}
 	}
 
+	/**
+	 * Execute a query asking the SQL server for the typed row format
+	 * @return a reader over the rows, or null if the query failed
+	 */
+	private SqlRowReader queryTyped(String sql) {
+		try {
+			byte[] result = sqlPool.executeBytes(TYPED_PREFIX + sql, true);
+			if (result.length >= 7 && new String(result, 0, 7, StandardCharsets.UTF_8).equals("SUCCESS")) {
+				return new SqlRowReader(result);
+			}
+			System.err.println("SQL Error: " + new String(result, StandardCharsets.UTF_8));
+		} catch (Exception e) {
+			System.err.println("SQL Error: " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * Execute many statements in a single exchange and a single SQL transaction
+	 * (one commit for the whole batch). A failing statement does not roll back the others.
+	 * @param statements SQL statements, none of them may contain the batch separator
+	 * @return SUCCESS:&lt;count&gt; or ERROR:&lt;failed&gt;/&lt;count&gt;:&lt;details&gt;
+	 */
+	private String executeBatch(List<String> statements) {
+		StringBuilder batch = new StringBuilder(BATCH_PREFIX);
+		for (int i = 0; i < statements.size(); i++) {
+			if (i > 0) batch.append(BATCH_SEPARATOR);
+			batch.append(statements.get(i));
+		}
+		return executeSQL(batch.toString());
+	}
+
+	private void writeAuditBatch(List<String> statements) {
+		String result = statements.size() == 1 ? executeSQL(statements.get(0)) : executeBatch(statements);
+		if (result.startsWith("ERROR")) {
+			System.err.println("SQL Error in audit batch of " + statements.size() + ": " + result);
+		}
+	}
+
+	/**
+	 * The current time as a SQL literal, taken when the audit statement is created
+	 * so that write-behind does not shift the recorded times
+	 */
+	private static String sqlNow() {
+		return "'" + LocalDateTime.now(ZoneOffset.UTC).format(SQL_TIME) + "'";
+	}
+
 	/**
 	 * Escape SQL special characters to prevent SQL injection
 	 */
 	private String escapeSql(String str) {
 		if (str == null) return "";
-		return str.replace("'", "''");
+		// the NUL terminator and the batch separator can not appear inside a statement
+		return str.replace("'", "''").replace("\u0000", "").replace(String.valueOf(BATCH_SEPARATOR), "");
+	}
+
+	/**
+	 * Warm start: fill the user registry from the users table, one page of sql.loadPageSize users
+	 * at a time, so that returning users are recognized after a restart and logins never go to SQL.
+	 */
+	private void loadUsers() {
+		long start = System.nanoTime();
+		PagedQuery users = new PagedQuery(loadPageSize, last ->
+			"SELECT username, password FROM users" +
+			(last == null ? "" : " WHERE username > '" + escapeSql(last.getString(0)) + "'") +
+			" ORDER BY username LIMIT " + loadPageSize);
+		int count = 0;
+		while (users.next()) {
+			userMap.putIfAbsent(users.get(0), new User(-1, users.get(0), users.get(1)));
+			count++;
+		}
+		System.out.println("Loaded " + count + " users in " + (System.nanoTime() - start) / 1000000 + " ms" +
+			(users.failed() ? " (incomplete, the query to the SQL server failed)" : ""));
 	}
 
 	public void addUser(User user) {
@@ -73,10 +157,10 @@ public class Database {
 		if (addNewUserCase(connectionId, username, password)) {
 			// Log new user registration in SQL
 			String sql = String.format(
-				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
-				escapeSql(username), escapeSql(password)
+				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', %s)",
+				escapeSql(username), escapeSql(password), sqlNow()
 			);
-			executeSQL(sql);
+			auditWriter.submit(sql);
 			
 			// Log login
 			logLogin(username);
@@ -93,10 +177,10 @@ public class Database {
 
 	private void logLogin(String username) {
 		String sql = String.format(
-			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
-			escapeSql(username)
+			"INSERT INTO login_history (username, login_time) VALUES ('%s', %s)",
+			escapeSql(username), sqlNow()
 		);
-		executeSQL(sql);
+		auditWriter.submit(sql);
 	}
 
 	private LoginStatus userExistsCase(int connectionId, String username, String password) {
@@ -134,12 +218,12 @@ public class Database {
 		if (user != null) {
 			// Log logout in SQL
 			String sql = String.format(
-				"UPDATE login_history SET logout_time=datetime('now') " +
+				"UPDATE login_history SET logout_time=%s " +
 				"WHERE username='%s' AND logout_time IS NULL " +
 				"ORDER BY login_time DESC LIMIT 1",
-				escapeSql(user.name)
+				sqlNow(), escapeSql(user.name)
 			);
-			executeSQL(sql);
+			auditWriter.submit(sql);
 			
 			user.logout();
 			connectionsIdMap.remove(connectionsId);
@@ -155,91 +239,101 @@ public class Database {
 	public void trackFileUpload(String username, String filename, String gameChannel) {
 		String sql = String.format(
 			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
-			"VALUES ('%s', '%s', datetime('now'), '%s')",
-			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
+			"VALUES ('%s', '%s', %s, '%s')",
+			escapeSql(username), escapeSql(filename), sqlNow(), escapeSql(gameChannel)
 		);
-		executeSQL(sql);
+		auditWriter.submit(sql);
 	}
 
 	/**
-	 * Generate and print server report using SQL queries
+	 * Generate and print server report using SQL queries.
+	 * Rows come back in the typed format and are read in place by SqlRowReader.
+	 * Every table is read in pages of sql.reportPageSize rows and printed as the pages arrive,
+	 * so memory use and the time the SQL server holds its lock do not grow with the tables.
 	 */
 	public void printReport() {
+		auditWriter.flush(); // so that the report includes every audit record made so far
 		System.out.println(repeat("=", 80));
 		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
+		System.out.println("SQL connection pool: " + sqlPool);
+		System.out.println("Audit write-behind: " + auditWriter);
 		System.out.println(repeat("=", 80));
 		
 		// List all users
 		System.out.println("\n1. REGISTERED USERS:");
 		System.out.println(repeat("-", 80));
-		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] parts = usersResult.split("\\|");
-			if (parts.length > 1) {
-				for (int i = 1; i < parts.length; i++) {
-					System.out.println("   " + parts[i]);
-				}
-			} else {
-				System.out.println("   No users registered");
-			}
-		}
+		PagedQuery users = new PagedQuery(reportPageSize, last ->
+			"SELECT username, registration_date FROM users" +
+			(last == null ? "" : String.format(
+				" WHERE registration_date > '%1$s' OR (registration_date = '%1$s' AND username > '%2$s')",
+				escapeSql(last.getString(1)), escapeSql(last.getString(0)))) +
+			" ORDER BY registration_date, username LIMIT " + reportPageSize);
+		if (!users.next()) {
+			System.out.println(users.failed() ? "   ERROR: could not read the users" : "   No users registered");
+		} else do {
+			System.out.println("   " + users.get(0) + ", registered: " + users.get(1));
+		} while (users.next());
+		printIfIncomplete(users);
 		
 		// Login history for each user
 		System.out.println("\n2. LOGIN HISTORY:");
 		System.out.println(repeat("-", 80));
-		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] parts = loginResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 3) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      Login:  " + fields[1]);
-						System.out.println("      Logout: " + (fields[2].equals("None") ? "Still logged in" : fields[2]));
-					}
-				}
-			} else {
-				System.out.println("   No login history");
+		PagedQuery logins = new PagedQuery(reportPageSize, last ->
+			"SELECT username, login_time, logout_time FROM login_history" +
+			(last == null ? "" : String.format(
+				" WHERE username > '%1$s' OR (username = '%1$s' AND login_time < '%2$s')",
+				escapeSql(last.getString(0)), escapeSql(last.getString(1)))) +
+			" ORDER BY username, login_time DESC LIMIT " + reportPageSize);
+		String currentUser = null;
+		if (!logins.next()) {
+			System.out.println(logins.failed() ? "   ERROR: could not read the login history" : "   No login history");
+		} else do {
+			if (!logins.get(0).equals(currentUser)) {
+				currentUser = logins.get(0);
+				System.out.println("\n   User: " + currentUser);
 			}
-		}
+			System.out.println("      Login:  " + logins.get(1));
+			System.out.println("      Logout: " + (logins.get(2) == null ? "Still logged in" : logins.get(2)));
+		} while (logins.next());
+		printIfIncomplete(logins);
 		
 		// File uploads for each user
 		System.out.println("\n3. FILE UPLOADS:");
 		System.out.println(repeat("-", 80));
-		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] parts = filesResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 4) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      File: " + fields[1]);
-						System.out.println("      Time: " + fields[2]);
-						System.out.println("      Game: " + fields[3]);
-						System.out.println();
-					}
-				}
-			} else {
-				System.out.println("   No files uploaded");
+		PagedQuery files = new PagedQuery(reportPageSize, last ->
+			"SELECT username, filename, upload_time, game_channel, id FROM file_tracking" +
+			(last == null ? "" : String.format(
+				" WHERE username > '%1$s' OR (username = '%1$s' AND " +
+				"(upload_time < '%2$s' OR (upload_time = '%2$s' AND id < %3$d)))",
+				escapeSql(last.getString(0)), escapeSql(last.getString(2)), last.getLong(4))) +
+			" ORDER BY username, upload_time DESC, id DESC LIMIT " + reportPageSize);
+		currentUser = null;
+		if (!files.next()) {
+			System.out.println(files.failed() ? "   ERROR: could not read the file uploads" : "   No files uploaded");
+		} else do {
+			if (!files.get(0).equals(currentUser)) {
+				currentUser = files.get(0);
+				System.out.println("\n   User: " + currentUser);
 			}
-		}
+			System.out.println("      File: " + files.get(1));
+			System.out.println("      Time: " + files.get(2));
+			System.out.println("      Game: " + files.get(3));
+			System.out.println();
+		} while (files.next());
+		printIfIncomplete(files);
 		
 	System.out.println(repeat("=", 80));
 }
 
+/**
+ * A query that failed after some rows were printed, so the section is cut short
+ */
+private void printIfIncomplete(PagedQuery query) {
+	if (query.failed() && query.rows() > 0) {
+		System.out.println("   ERROR: the query to the SQL server failed, the list above is incomplete");
+	}
+}
+
 private String repeat(String str, int times) {
 	StringBuilder sb = new StringBuilder();
 	for (int i = 0; i < times; i++) {
@@ -248,6 +342,83 @@ private String repeat(String str, int times) {
 	return sb.toString();
 }
 
+/**
+ * Iterates over the rows of a query one page at a time using keyset pagination: every page is
+ * asked for with a query that continues after the last row of the previous page (no OFFSET),
+ * so each round trip is short and only one page is held in memory.
+ */
+private class PagedQuery {
+	private final int pageSize;
+	private final Function<SqlRowReader, String> pageAfter;
+	private SqlRowReader page = null;
+	private int rowsInPage = 0;
+	private int rows = 0;
+	private boolean done = false;
+	private boolean failed = false;
+
+	/**
+	 * @param pageAfter builds the query of the page after the row the reader is on (null for the first page),
+	 * it must order by a unique key and have a LIMIT of pageSize rows
+	 */
+	PagedQuery(int pageSize, Function<SqlRowReader, String> pageAfter) {
+		this.pageSize = pageSize;
+		this.pageAfter = pageAfter;
+	}
+
+	/**
+	 * @return false once there are no more rows, or once a page could not be read (see {@link #failed()})
+	 */
+	boolean next() {
+		while (!done) {
+			if (page != null && nextRow()) {
+				rowsInPage++;
+				rows++;
+				return true;
+			}
+			if (failed) {
+				break;
+			}
+			if (page != null && rowsInPage < pageSize) {
+				break;
+			}
+			page = queryTyped(pageAfter.apply(page));
+			rowsInPage = 0;
+			failed = page == null;
+			done = failed;
+		}
+		done = true;
+		return false;
+	}
+
+	private boolean nextRow() {
+		try {
+			return page.next();
+		} catch (IllegalArgumentException e) {
+			System.err.println("SQL Error: " + e.getMessage());
+			failed = true;
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if next() stopped because a query failed, not because the rows ran out
+	 */
+	boolean failed() {
+		return failed;
+	}
+
+	/**
+	 * @return the number of rows returned by next() so far
+	 */
+	int rows() {
+		return rows;
+	}
+
+	String get(int col) {
+		return page.getString(col);
+	}
+}
+
 private static class Instance {
 	static Database instance = new Database();
 }}
\ No newline at end of file
@@ -0,0 +1,259 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of long lived sockets to the SQL server. Each socket carries any number of
+ * NUL terminated request/response exchanges, one at a time.
+ * Connections are opened lazily up to the pool size, checked with a cheap query when they were idle
+ * for a while, and replaced when the exchange fails. A failed statement is retried once only if the
+ * caller says it is safe to run twice: the server may have run it before the exchange broke.
+ * A server that does not answer within the read timeout is treated like a broken connection, so a hung
+ * SQL server fails the callers instead of blocking them (and holding their connections) for good.
+ */
+public class SqlConnectionPool {
+
+	private static final String HEALTH_CHECK_SQL = "SELECT 1";
+
+	private final String host;
+	private final int port;
+	private final int maxSize;
+	private final long acquireTimeoutMillis;
+	private final long idleCheckMillis;
+	private final int readTimeoutMillis;
+
+	private final LinkedBlockingDeque<SqlConnection> idle = new LinkedBlockingDeque<>();
+	private final AtomicInteger opened = new AtomicInteger(0);
+
+	// wait time metrics, used to size the pool
+	private final LongAdder leases = new LongAdder();
+	private final LongAdder waitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong(0);
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder reconnects = new LongAdder();
+
+	/**
+	 * @param readTimeoutMillis the longest wait for the server to accept or answer, 0 waits forever
+	 */
+	public SqlConnectionPool(String host, int port, int maxSize, long acquireTimeoutMillis, long idleCheckMillis,
+			int readTimeoutMillis) {
+		this.host = host;
+		this.port = port;
+		this.maxSize = maxSize;
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.idleCheckMillis = idleCheckMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	/**
+	 * Send one statement to the SQL server and return its response (without the NUL terminator)
+	 * @param idempotent true if running the statement twice does no harm (a query), only then a failed
+	 * exchange is retried
+	 * @throws IOException if no connection could be obtained or the exchange failed (twice if retried)
+	 */
+	public String execute(String sql, boolean idempotent) throws IOException {
+		return new String(executeBytes(sql, idempotent), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Like {@link #execute(String, boolean)} but returns the raw UTF-8 response, for readers that parse it in place
+	 */
+	public byte[] executeBytes(String sql, boolean idempotent) throws IOException {
+		SqlConnection conn = acquire();
+		try {
+			return conn.exchange(sql);
+		} catch (IOException first) {
+			discard(conn);
+			conn = null;
+			// a server that timed out is most likely hung, waiting for it a second time does not help
+			if (!idempotent || first instanceof SocketTimeoutException) {
+				throw first;
+			}
+			// the server may have dropped an idle socket, retry once on another connection within the pool size
+			reconnects.increment();
+			conn = acquire();
+			try {
+				return conn.exchange(sql);
+			} catch (IOException second) {
+				discard(conn);
+				conn = null;
+				throw second;
+			}
+		} finally {
+			if (conn != null && conn.isOpen()) {
+				release(conn);
+			}
+		}
+	}
+
+	private SqlConnection acquire() throws IOException {
+		long start = System.nanoTime();
+		try {
+			while (true) {
+				SqlConnection conn = idle.pollFirst();
+				if (conn == null) {
+					conn = openIfBelowMax();
+				}
+				if (conn == null) {
+					conn = idle.pollFirst(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+					if (conn == null) {
+						timeouts.increment();
+						throw new IOException("Timed out waiting for a SQL connection");
+					}
+				}
+				if (isHealthy(conn)) {
+					return conn;
+				}
+				discard(conn);
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a SQL connection", ex);
+		} finally {
+			long waited = System.nanoTime() - start;
+			leases.increment();
+			waitNanos.add(waited);
+			maxWaitNanos.accumulateAndGet(waited, Math::max);
+		}
+	}
+
+	private SqlConnection openIfBelowMax() throws IOException {
+		while (true) {
+			int current = opened.get();
+			if (current >= maxSize) {
+				return null;
+			}
+			if (opened.compareAndSet(current, current + 1)) {
+				try {
+					return new SqlConnection(host, port, readTimeoutMillis);
+				} catch (IOException ex) {
+					opened.decrementAndGet();
+					throw ex;
+				}
+			}
+		}
+	}
+
+	private boolean isHealthy(SqlConnection conn) {
+		if (!conn.isOpen()) {
+			return false;
+		}
+		if (System.currentTimeMillis() - conn.lastUsedMillis < idleCheckMillis) {
+			return true;
+		}
+		try {
+			byte[] response = conn.exchange(HEALTH_CHECK_SQL);
+			return new String(response, StandardCharsets.UTF_8).startsWith("SUCCESS");
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	private void release(SqlConnection conn) {
+		idle.offerFirst(conn); // most recently used first, so that surplus sockets stay idle
+	}
+
+	private void discard(SqlConnection conn) {
+		conn.close();
+		opened.decrementAndGet();
+	}
+
+	/**
+	 * Close all the idle connections, connections in use are closed when they are released
+	 */
+	public void close() {
+		SqlConnection conn;
+		while ((conn = idle.pollFirst()) != null) {
+			discard(conn);
+		}
+	}
+
+	public long getLeases() {
+		return leases.sum();
+	}
+
+	public double getAverageWaitMillis() {
+		long n = leases.sum();
+		return n == 0 ? 0 : waitNanos.sum() / 1e6 / n;
+	}
+
+	public double getMaxWaitMillis() {
+		return maxWaitNanos.get() / 1e6;
+	}
+
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("open=%d idle=%d leases=%d avgWait=%.3fms maxWait=%.3fms timeouts=%d reconnects=%d",
+				opened.get(), idle.size(), getLeases(), getAverageWaitMillis(), getMaxWaitMillis(),
+				getTimeouts(), reconnects.sum());
+	}
+
+	private static class SqlConnection {
+		private final Socket socket;
+		private final BufferedOutputStream out;
+		private final BufferedInputStream in;
+		private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+		private long lastUsedMillis;
+
+		SqlConnection(String host, int port, int timeoutMillis) throws IOException {
+			socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+				socket.setSoTimeout(timeoutMillis);
+				socket.setTcpNoDelay(true);
+				out = new BufferedOutputStream(socket.getOutputStream());
+				in = new BufferedInputStream(socket.getInputStream());
+			} catch (IOException ex) {
+				socket.close();
+				throw ex;
+			}
+			lastUsedMillis = System.currentTimeMillis();
+		}
+
+		byte[] exchange(String sql) throws IOException {
+			// Send SQL with null terminator
+			out.write(sql.getBytes(StandardCharsets.UTF_8));
+			out.write('\0');
+			out.flush();
+
+			// Read response until null terminator
+			response.reset();
+			int b;
+			while ((b = in.read()) != '\0') {
+				if (b == -1) {
+					throw new IOException("SQL server closed the connection");
+				}
+				response.write(b);
+			}
+			lastUsedMillis = System.currentTimeMillis();
+			return response.toByteArray();
+		}
+
+		boolean isOpen() {
+			return !socket.isClosed();
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package bgu.spl.net.impl.data;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the typed row format that the SQL server returns for queries sent with the TYPED prefix:
+ * <pre>
+ * SUCCESS;&lt;column count&gt;;&lt;field&gt;&lt;field&gt;...
+ * </pre>
+ * where every field is a type letter followed (except for NULL) by the byte length of the value,
+ * a colon and the UTF-8 bytes: {@code s5:alice}, {@code i2:42}, {@code r3:1.5}, {@code b4:beef} (hex) or {@code n}.
+ * Rows are the fields in order, column count at a time. The reader does not copy the response:
+ * {@link #next()} only records where the fields of the current row are, values are decoded on access.
+ */
+public class SqlRowReader {
+
+	private final byte[] buf;
+	private final int columns;
+	private int pos;
+	private final byte[] types;
+	private final int[] starts;
+	private final int[] lengths;
+
+	/**
+	 * @param response a response of a TYPED query that starts with SUCCESS
+	 * @throws IllegalArgumentException if the response is not in the typed format
+	 */
+	public SqlRowReader(byte[] response) {
+		this.buf = response;
+		int p = expect(0, "SUCCESS;");
+		int c = 0;
+		while (p < buf.length && buf[p] != ';') {
+			c = c * 10 + digit(p++);
+		}
+		this.pos = expect(p, ";");
+		this.columns = c;
+		this.types = new byte[c];
+		this.starts = new int[c];
+		this.lengths = new int[c];
+	}
+
+	public int getColumnCount() {
+		return columns;
+	}
+
+	/**
+	 * Move to the next row. When there are no more rows the previous row stays readable.
+	 * @return false if there are no more rows
+	 * @throws IllegalArgumentException if the row is truncated or not in the typed format
+	 */
+	public boolean next() {
+		if (pos >= buf.length || columns == 0) {
+			return false;
+		}
+		int p = pos;
+		for (int col = 0; col < columns; col++) {
+			checkAvailable(p, 1);
+			byte type = buf[p++];
+			types[col] = type;
+			if (type == 'n') {
+				starts[col] = p;
+				lengths[col] = 0;
+				continue;
+			}
+			int len = 0;
+			while (true) {
+				checkAvailable(p, 1);
+				if (buf[p] == ':') break;
+				len = len * 10 + digit(p++);
+				if (len > buf.length) {
+					throw new IllegalArgumentException("Malformed SQL response, field length too large at " + p);
+				}
+			}
+			checkAvailable(++p, len);
+			starts[col] = p;
+			lengths[col] = len;
+			p += len;
+		}
+		pos = p;
+		return true;
+	}
+
+	public boolean isNull(int col) {
+		return types[col] == 'n';
+	}
+
+	/**
+	 * @return the value of the column in the current row as text, null for SQL NULL
+	 */
+	public String getString(int col) {
+		return isNull(col) ? null : new String(buf, starts[col], lengths[col], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the value of an integer column in the current row, parsed straight from the response bytes
+	 */
+	public long getLong(int col) {
+		if (types[col] != 'i') {
+			throw new IllegalStateException("Column " + col + " is not an integer");
+		}
+		int p = starts[col];
+		int end = p + lengths[col];
+		boolean negative = buf[p] == '-';
+		if (negative) p++;
+		long value = 0;
+		while (p < end) {
+			value = value * 10 + digit(p++);
+		}
+		return negative ? -value : value;
+	}
+
+	private void checkAvailable(int p, int n) {
+		if (n > buf.length - p) {
+			throw new IllegalArgumentException("Truncated SQL response");
+		}
+	}
+
+	private int digit(int p) {
+		int d = buf[p] - '0';
+		if (d < 0 || d > 9) {
+			throw new IllegalArgumentException("Malformed SQL response, expected a digit at " + p);
+		}
+		return d;
+	}
+
+	private int expect(int p, String token) {
+		for (int i = 0; i < token.length(); i++, p++) {
+			if (p >= buf.length || buf[p] != token.charAt(i)) {
+				throw new IllegalArgumentException("Malformed SQL response, expected '" + token + "'");
+			}
+		}
+		return p;
+	}
+}
@@ -1,8 +1,10 @@
 package bgu.spl.net.impl.echo;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String> {
 
@@ -21,6 +23,29 @@ public class LineMessageEncoderDecoder implements MessageEncoderDecoder<String>
         return null; //not a line yet
     }
 
+    @Override
+    public void decodeNextBytes(ByteBuffer buffer, Consumer<String> consumer) {
+        int n = buffer.remaining();
+        if (len + n > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(len + n, len * 2));
+        }
+        buffer.get(bytes, len, n);
+
+        int end = len + n;
+        int start = 0;
+        for (int i = len; i < end; i++) {
+            if (bytes[i] == '\n') {
+                consumer.accept(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+
+        len = end - start;
+        if (start > 0 && len > 0) {
+            System.arraycopy(bytes, start, bytes, 0, len);
+        }
+    }
+
     @Override
     public byte[] encode(String message) {
         return (message + "\n").getBytes(); //uses utf8 by default
@@ -0,0 +1,163 @@
+package bgu.spl.net.impl.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The append only log of one durable destination, a list of segments ordered by their first offset.
+ * Every message gets the next offset of the destination, offsets are never reused.
+ * All the methods are synchronized on the log, callers that need an append or a read to be atomic
+ * with something else (like taking a subscriber snapshot) can hold the same monitor.
+ */
+public class DestinationLog {
+
+    /**
+     * Gets the records of {@link #read}, the body is only valid during the call.
+     */
+    public interface RecordConsumer {
+        void accept(long offset, long timestamp, ByteBuffer body);
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+    private final int indexEntries;
+    private final long retentionMillis;
+    private final long retentionBytes;
+    private final List<LogSegment> segments = new ArrayList<>();
+
+    DestinationLog(File dir, int segmentBytes, int indexEntries, long retentionMillis, long retentionBytes)
+            throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.indexEntries = indexEntries;
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create log directory " + dir);
+        }
+        List<Long> baseOffsets = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        if (files != null) {
+            for (File file : files) {
+                baseOffsets.add(Long.parseLong(file.getName().substring(0, file.getName().length() - 4)));
+            }
+        }
+        baseOffsets.sort(null);
+        for (long baseOffset : baseOffsets) {
+            segments.add(LogSegment.open(dir, baseOffset, segmentBytes, indexEntries));
+        }
+        if (segments.isEmpty()) {
+            segments.add(LogSegment.open(dir, 0, segmentBytes, indexEntries));
+        }
+        applyRetention(System.currentTimeMillis());
+    }
+
+    /**
+     * Appends a message, rolling to a new segment when the current one is full.
+     * A message that cannot be appended (-1 or an exception) has no offset, so it must not be published:
+     * a subscriber resuming from an offset would never see it.
+     * @return the offset of the message, or -1 if it is larger than a segment (nothing is appended)
+     * @throws IOException if writing the segment failed
+     */
+    public synchronized long append(ByteBuffer body) throws IOException {
+        long now = System.currentTimeMillis();
+        LogSegment last = segments.get(segments.size() - 1);
+        long offset = last.getNextOffset();
+        if (!last.append(body, now)) {
+            if (LogSegment.RECORD_HEADER + body.remaining() > segmentBytes) {
+                return -1;
+            }
+            last.flush();
+            last = LogSegment.open(dir, offset, segmentBytes, indexEntries);
+            segments.add(last);
+            last.append(body, now);
+            applyRetention(now);
+        }
+        return offset;
+    }
+
+    /**
+     * Hands a page of the retained records from the given offset on to the consumer, in order: at most
+     * {@code maxRecords} records and, after the first one, no more than {@code maxBytes} of bodies.
+     * An offset older than the retained records starts at the oldest one.
+     * @return the offset after the last record handed over, the end offset once the log is read to its end
+     */
+    public synchronized long read(long fromOffset, int maxRecords, long maxBytes, RecordConsumer consumer) {
+        long next = Math.max(fromOffset, getStartOffset());
+        int records = 0;
+        long bytes = 0;
+        for (int s = findSegment(next); s < segments.size(); s++) {
+            LogSegment segment = segments.get(s);
+            for (int i = (int) Math.max(0, next - segment.getBaseOffset()); i < segment.getCount(); i++) {
+                ByteBuffer body = segment.body(i);
+                int size = body.remaining();
+                if (records == maxRecords || (records > 0 && bytes + size > maxBytes)) {
+                    return next;
+                }
+                consumer.accept(segment.getBaseOffset() + i, segment.timestamp(i), body);
+                records++;
+                bytes += size;
+                next = segment.getBaseOffset() + i + 1;
+            }
+        }
+        return next;
+    }
+
+    // the last segment that starts at or before the offset (the first one if the offset is older)
+    private int findSegment(long offset) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments.get(mid).getBaseOffset() <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the offset of the oldest retained message
+     */
+    public synchronized long getStartOffset() {
+        return segments.get(0).getBaseOffset();
+    }
+
+    /**
+     * @return the offset the next message will get
+     */
+    public synchronized long getEndOffset() {
+        return segments.get(segments.size() - 1).getNextOffset();
+    }
+
+    /**
+     * Deletes the oldest segments while the log is over its size limit or their newest record is older
+     * than the time limit. The segment being appended to is never deleted.
+     */
+    public synchronized void applyRetention(long now) {
+        long total = 0;
+        for (LogSegment segment : segments) {
+            total += segment.getSizeBytes();
+        }
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.get(0);
+            boolean expired = retentionMillis > 0 && oldest.getLastTimestamp() < now - retentionMillis;
+            boolean oversized = retentionBytes > 0 && total > retentionBytes;
+            if (!expired && !oversized) break;
+            segments.remove(0);
+            total -= oldest.getSizeBytes();
+            oldest.delete();
+        }
+    }
+
+    public synchronized void flush() {
+        for (LogSegment segment : segments) {
+            segment.flush();
+        }
+    }
+}
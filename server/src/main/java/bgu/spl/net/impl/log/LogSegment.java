@@ -0,0 +1,151 @@
+package bgu.spl.net.impl.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One segment of a destination log: a memory mapped data file with the records
+ * (length, timestamp, body) one after the other, and a memory mapped index file with the
+ * position of every record, so a record is found by its offset without reading the data file.
+ * A record is written to the data file before its index entry, the index decides which records exist.
+ */
+class LogSegment {
+
+    static final int RECORD_HEADER = 12; // int length + long timestamp
+    private static final int INDEX_ENTRY = 4;
+
+    private final long baseOffset;
+    private final File dataFile;
+    private final File indexFile;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;
+    private final int indexEntries;
+    private int count;
+    private int writePosition;
+
+    private LogSegment(long baseOffset, File dataFile, File indexFile, MappedByteBuffer data, MappedByteBuffer index) {
+        this.baseOffset = baseOffset;
+        this.dataFile = dataFile;
+        this.indexFile = indexFile;
+        this.data = data;
+        this.index = index;
+        this.indexEntries = index.capacity() / INDEX_ENTRY;
+        this.count = recoverCount();
+        this.writePosition = count == 0 ? 0 : position(count - 1) + RECORD_HEADER + data.getInt(position(count - 1));
+    }
+
+    /**
+     * Opens the segment that starts at the given offset, creating its files if they do not exist.
+     */
+    static LogSegment open(File dir, long baseOffset, int segmentBytes, int indexEntries) throws IOException {
+        String name = String.format("%020d", baseOffset);
+        File dataFile = new File(dir, name + ".log");
+        File indexFile = new File(dir, name + ".index");
+        return new LogSegment(baseOffset, dataFile, indexFile,
+                map(dataFile, segmentBytes), map(indexFile, indexEntries * INDEX_ENTRY));
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            //the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, (int) raf.length()));
+        }
+    }
+
+    // index entries hold position + 1, so a zero entry (the file is zero filled) is an empty slot
+    private int recoverCount() {
+        int low = 0;
+        int high = indexEntries;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (index.getInt(mid * INDEX_ENTRY) != 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int position(int i) {
+        return index.getInt(i * INDEX_ENTRY) - 1;
+    }
+
+    /**
+     * @return false if the record does not fit in this segment
+     */
+    boolean append(ByteBuffer body, long timestamp) {
+        int length = body.remaining();
+        if (count == indexEntries || (long) writePosition + RECORD_HEADER + length > data.capacity()) {
+            return false;
+        }
+        data.putInt(writePosition, length);
+        data.putLong(writePosition + 4, timestamp);
+        ByteBuffer target = data.duplicate();
+        target.position(writePosition + RECORD_HEADER);
+        target.put(body.duplicate());
+        index.putInt(count * INDEX_ENTRY, writePosition + 1);
+        count++;
+        writePosition += RECORD_HEADER + length;
+        return true;
+    }
+
+    /**
+     * @return a read only view of the body of the i-th record of this segment, nothing is copied
+     */
+    ByteBuffer body(int i) {
+        int position = position(i);
+        ByteBuffer body = data.duplicate();
+        body.position(position + RECORD_HEADER);
+        body.limit(position + RECORD_HEADER + data.getInt(position));
+        return body.slice().asReadOnlyBuffer();
+    }
+
+    long timestamp(int i) {
+        return data.getLong(position(i) + 4);
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * @return the offset the next record appended to this segment would get
+     */
+    long getNextOffset() {
+        return baseOffset + count;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    int getSizeBytes() {
+        return writePosition;
+    }
+
+    /**
+     * @return the time of the newest record, or -1 if the segment is empty
+     */
+    long getLastTimestamp() {
+        return count == 0 ? -1 : timestamp(count - 1);
+    }
+
+    void flush() {
+        data.force();
+        index.force();
+    }
+
+    /**
+     * Deletes the files, the segment must not be used after that.
+     */
+    void delete() {
+        if (!dataFile.delete() || !indexFile.delete()) {
+            System.err.println("Could not delete log segment " + dataFile);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package bgu.spl.net.impl.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The durable destinations of the server and their logs. Durability is off unless destinations are
+ * listed with -Dstomp.durable=&lt;destination&gt;,&lt;prefix&gt;*,... (a lone * makes every destination durable).
+ * The logs live under -Dstomp.dataDir (default "data/log"), one directory per destination, and are tuned with
+ * stomp.segmentBytes, stomp.segmentIndexEntries, stomp.retentionMillis and stomp.retentionBytes
+ * (per destination, 0 turns a limit off).
+ */
+public class MessageLog {
+
+    private final String[] durable;
+    private final File dataDir;
+    private final int segmentBytes = Integer.getInteger("stomp.segmentBytes", 64 << 20);
+    private final int indexEntries = Integer.getInteger("stomp.segmentIndexEntries", 1 << 18);
+    private final long retentionMillis = Long.getLong("stomp.retentionMillis", TimeUnit.DAYS.toMillis(7));
+    private final long retentionBytes = Long.getLong("stomp.retentionBytes", 1L << 30);
+    private final ConcurrentHashMap<String, DestinationLog> logs = new ConcurrentHashMap<>();
+
+    private MessageLog() {
+        String list = System.getProperty("stomp.durable", "").trim();
+        this.durable = list.isEmpty() ? new String[0] : list.split("\\s*,\\s*");
+        this.dataDir = new File(System.getProperty("stomp.dataDir", "data/log"));
+        if (durable.length > 0) {
+            ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "message-log");
+                t.setDaemon(true);
+                return t;
+            });
+            // quiet destinations never roll, so time based retention is also checked periodically
+            maintenance.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.MINUTES);
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "message-log-shutdown"));
+        }
+    }
+
+    public static MessageLog getInstance() {
+        return Instance.instance;
+    }
+
+    public boolean isDurable(String destination) {
+        for (String pattern : durable) {
+            if (pattern.endsWith("*")
+                    ? destination.startsWith(pattern.substring(0, pattern.length() - 1))
+                    : destination.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the log of the destination, opened on first use, or null if the destination is not durable
+     * @throws UncheckedIOException if the log can not be opened
+     */
+    public DestinationLog forDestination(String destination) {
+        if (!isDurable(destination)) {
+            return null;
+        }
+        return logs.computeIfAbsent(destination, d -> {
+            try {
+                return new DestinationLog(new File(dataDir, URLEncoder.encode(d, "UTF-8")),
+                        segmentBytes, indexEntries, retentionMillis, retentionBytes);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        for (DestinationLog log : logs.values()) {
+            log.applyRetention(now);
+        }
+    }
+
+    public void flush() {
+        for (DestinationLog log : logs.values()) {
+            log.flush();
+        }
+    }
+
+    private static class Instance {
+        static MessageLog instance = new MessageLog();
+    }
+}
@@ -9,6 +9,7 @@ import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.function.Consumer;
 
 public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable> {
 
@@ -38,6 +39,24 @@ public class ObjectEncoderDecoder implements MessageEncoderDecoder<Serializable>
         return null;
     }
 
+    @Override
+    public void decodeNextBytes(ByteBuffer buffer, Consumer<Serializable> consumer) {
+        while (buffer.hasRemaining()) {
+            if (objectBytes == null) { //the length is only 4 bytes, no point in doing it in bulk
+                decodeNextByte(buffer.get());
+            } else {
+                int n = Math.min(buffer.remaining(), objectBytes.length - objectBytesIndex);
+                buffer.get(objectBytes, objectBytesIndex, n);
+                objectBytesIndex += n;
+                if (objectBytesIndex == objectBytes.length) {
+                    Serializable result = deserializeObject();
+                    objectBytes = null;
+                    consumer.accept(result);
+                }
+            }
+        }
+    }
+
     @Override
     public byte[] encode(Serializable message) {
         return serializeObject(message);
@@ -0,0 +1,159 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import bgu.spl.net.srv.ConnectionsImpl;
+
+/**
+ * The delivery state of a subscription in the client or client-individual ack mode.
+ * At most {@code prefetch} messages are sent and not acknowledged at a time (0 for no limit),
+ * the rest wait here until ACKs make room. A NACKed message is sent again.
+ * Fan-out calls {@link #deliver} from the publishers' threads and ACK/NACK come from the
+ * subscriber's own connection, so every method is synchronized.
+ */
+public class ClientSubscription {
+
+    private final ConnectionsImpl<String> connections;
+    private final int connectionId;
+    private final String subscriptionId;
+    private final boolean individual;
+    private final int prefetch;
+    private final int maxPending;
+    // sent and not acknowledged yet, in the order they were sent
+    private final LinkedHashMap<String, MessageFrame> unacked = new LinkedHashMap<>();
+    private final ArrayDeque<MessageFrame> pending = new ArrayDeque<>();
+    private long nextAck = 0;
+    private long droppedPending = 0;
+    private boolean closed = false;
+    // a replay waiting for the pending messages to go out, see whenDrained
+    private Runnable drainedTask = null;
+
+    /**
+     * @param individual true for client-individual (an ACK covers one message), false for client
+     * (an ACK covers the message and every message sent before it)
+     * @param maxPending the most messages kept waiting for the window, the oldest ones are dropped beyond it
+     */
+    public ClientSubscription(ConnectionsImpl<String> connections, int connectionId, String subscriptionId,
+                              boolean individual, int prefetch, int maxPending) {
+        this.connections = connections;
+        this.connectionId = connectionId;
+        this.subscriptionId = subscriptionId;
+        this.individual = individual;
+        this.prefetch = prefetch;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @return the subscription id of an ack id made by {@link #send}
+     */
+    public static String subscriptionOf(String ackId) {
+        int dash = ackId.lastIndexOf('-');
+        return dash < 0 ? null : ackId.substring(0, dash);
+    }
+
+    public synchronized void deliver(MessageFrame message) {
+        if (closed) return;
+        if (prefetch > 0 && unacked.size() >= prefetch) {
+            if (pending.size() >= maxPending) {
+                pending.poll();
+                droppedPending++;
+            }
+            pending.add(message);
+        } else {
+            send(message, false);
+        }
+    }
+
+    private void send(MessageFrame message, boolean redelivered) {
+        String ackId = subscriptionId + "-" + nextAck++;
+        unacked.put(ackId, message);
+        connections.sendEncoded(connectionId, message.forSubscription(subscriptionId, ackId, redelivered));
+    }
+
+    /**
+     * @return false if the ack id is not of a message waiting for acknowledgement
+     */
+    public synchronized boolean ack(String ackId) {
+        if (remove(ackId) == null) return false;
+        fillWindow();
+        if (drainedTask != null && pending.isEmpty()) {
+            connections.afterFlush(connectionId, drainedTask);
+            drainedTask = null;
+        }
+        return true;
+    }
+
+    /**
+     * Sends the NACKed message(s) again, marked as redelivered.
+     * @return false if the ack id is not of a message waiting for acknowledgement
+     */
+    public synchronized boolean nack(String ackId) {
+        List<MessageFrame> nacked = remove(ackId);
+        if (nacked == null) return false;
+        for (MessageFrame message : nacked) {
+            send(message, true);
+        }
+        return true;
+    }
+
+    // the acknowledged messages (just the one in client-individual mode), or null if the id is unknown
+    private List<MessageFrame> remove(String ackId) {
+        if (!unacked.containsKey(ackId)) return null;
+        List<MessageFrame> removed = new ArrayList<>();
+        if (individual) {
+            removed.add(unacked.remove(ackId));
+            return removed;
+        }
+        Iterator<Map.Entry<String, MessageFrame>> it = unacked.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, MessageFrame> entry = it.next();
+            removed.add(entry.getValue());
+            it.remove();
+            if (entry.getKey().equals(ackId)) break;
+        }
+        return removed;
+    }
+
+    private void fillWindow() {
+        while (!pending.isEmpty() && (prefetch <= 0 || unacked.size() < prefetch)) {
+            send(pending.poll(), false);
+        }
+    }
+
+    /**
+     * Parks the task until every message waiting for the window was sent, then runs it through
+     * {@link ConnectionsImpl#afterFlush}. A replay uses it to send its next page only when there is room.
+     * @return false if no message is waiting, the task is not parked and the caller can go on
+     */
+    public synchronized boolean whenDrained(Runnable task) {
+        if (closed || pending.isEmpty()) return false;
+        drainedTask = task;
+        return true;
+    }
+
+    /**
+     * Stops delivering, the messages that were not acknowledged are dropped with the subscription.
+     */
+    public synchronized void close() {
+        closed = true;
+        unacked.clear();
+        pending.clear();
+        drainedTask = null;
+    }
+
+    public synchronized int getUnackedCount() {
+        return unacked.size();
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public synchronized long getDroppedPending() {
+        return droppedPending;
+    }
+}
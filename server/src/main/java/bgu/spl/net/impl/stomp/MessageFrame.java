@@ -0,0 +1,61 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A MESSAGE frame that is fanned out to every subscriber of a destination.
+ * Everything except the subscription header (destination, message-id and the body)
+ * is encoded once into a read only buffer, each subscriber gets a small prefix with
+ * its own subscription header followed by a duplicate of the shared part.
+ */
+public class MessageFrame {
+
+    private final ByteBuffer shared;
+
+    public MessageFrame(String destination, int messageId, ByteBuffer body) {
+        this(destination, messageId, -1, body);
+    }
+
+    /**
+     * @param offset the offset of the message in the destination's durable log (sent as an offset header),
+     * -1 if the destination is not durable
+     */
+    public MessageFrame(String destination, int messageId, long offset, ByteBuffer body) {
+        byte[] headers = ("destination:" + destination + "\nmessage-id:" + messageId +
+                (offset < 0 ? "" : "\noffset:" + offset) + "\n\n")
+                .getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encoded = ByteBuffer.allocate(headers.length + body.remaining() + 1);
+        encoded.put(headers).put(body.duplicate()).put((byte) '\u0000');
+        encoded.flip();
+        this.shared = encoded.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the frame as delivered on the given subscription, ready for {@code sendEncoded}
+     */
+    public ByteBuffer[] forSubscription(String subscriptionId) {
+        return new ByteBuffer[]{prefix(subscriptionId), shared.duplicate()};
+    }
+
+    /**
+     * @return the frame as delivered on a subscription that needs acknowledgements, the ack header
+     * (and the redelivered flag) go in the per subscriber prefix so the shared part stays as it is
+     */
+    public ByteBuffer[] forSubscription(String subscriptionId, String ackId, boolean redelivered) {
+        byte[] prefix = ("MESSAGE\nsubscription:" + subscriptionId + "\nack:" + ackId +
+                (redelivered ? "\nredelivered:true\n" : "\n")).getBytes(StandardCharsets.UTF_8);
+        return new ByteBuffer[]{ByteBuffer.wrap(prefix), shared.duplicate()};
+    }
+
+    /**
+     * @return the size of the shared part of the frame, what every subscriber gets besides its prefix
+     */
+    public int getEncodedSize() {
+        return shared.remaining();
+    }
+
+    public static ByteBuffer prefix(String subscriptionId) {
+        return ByteBuffer.wrap(("MESSAGE\nsubscription:" + subscriptionId + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,99 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The last encoded MESSAGE frames of every destination, kept so that a late subscriber can catch up.
+ * A destination keeps at most {@code capacity} frames and, if {@code maxAgeMillis} is positive,
+ * only the frames that are not older than that. The frames are kept encoded, a catch up only adds
+ * the subscription prefix of the new subscriber.
+ */
+public class RecentMessages {
+
+    private final int capacity;
+    private final long maxAgeMillis;
+    private final ConcurrentHashMap<String, Ring> rings = new ConcurrentHashMap<>();
+
+    public RecentMessages(int capacity, long maxAgeMillis) {
+        this.capacity = capacity;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * @return the ring of the destination, or null if retaining is turned off (capacity 0)
+     */
+    public Ring forDestination(String destination) {
+        if (capacity <= 0) {
+            return null;
+        }
+        return rings.computeIfAbsent(destination, d -> new Ring());
+    }
+
+    /**
+     * A fixed size ring of frames, oldest first. Every frame gets the next sequence number, a catch up
+     * pages through the ring by it with a {@link SubscriptionReplay}. It is not thread safe by itself,
+     * callers synchronize on the ring so that they can also make a subscription change atomic with it.
+     */
+    public class Ring implements SubscriptionReplay.Backlog {
+        private final MessageFrame[] frames = new MessageFrame[capacity];
+        private final long[] times = new long[capacity];
+        private int head = 0; // index of the oldest frame
+        private int size = 0;
+        private long next = 0; // sequence number of the next frame, the oldest one is next - size
+
+        public void add(MessageFrame frame) {
+            long now = System.currentTimeMillis();
+            int tail = (head + size) % capacity;
+            frames[tail] = frame;
+            times[tail] = now;
+            if (size < capacity) {
+                size++;
+            } else {
+                head = (head + 1) % capacity;
+            }
+            next++;
+            expire(now);
+        }
+
+        /**
+         * @return the sequence number of the oldest of the newest {@code limit} retained frames
+         */
+        public long start(int limit) {
+            expire(System.currentTimeMillis());
+            return next - Math.min(size, limit);
+        }
+
+        /**
+         * Frames that were pushed out of the ring (or expired) while a catch up was paging are skipped.
+         */
+        @Override
+        public long read(long cursor, int maxFrames, long maxBytes, List<MessageFrame> page) {
+            expire(System.currentTimeMillis());
+            long seq = Math.max(cursor, next - size);
+            long bytes = 0;
+            while (seq < next && page.size() < maxFrames) {
+                MessageFrame frame = frames[(int) ((head + seq - (next - size)) % capacity)];
+                if (!page.isEmpty() && bytes + frame.getEncodedSize() > maxBytes) break;
+                page.add(frame);
+                bytes += frame.getEncodedSize();
+                seq++;
+            }
+            return seq;
+        }
+
+        @Override
+        public long end() {
+            return next;
+        }
+
+        private void expire(long now) {
+            if (maxAgeMillis <= 0) return;
+            while (size > 0 && times[head] < now - maxAgeMillis) {
+                frames[head] = null;
+                head = (head + 1) % capacity;
+                size--;
+            }
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package bgu.spl.net.impl.stomp;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.api.StompFrame;
 
 public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
 
@@ -20,6 +23,44 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
         return null;
     }
 
+    @Override
+    public void decodeNextBytes(ByteBuffer buffer, Consumer<String> consumer) {
+        scanFrames(buffer, (frameBytes, from, to) ->
+                consumer.accept(new String(frameBytes, from, to - from, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * like {@link #decodeNextBytes(ByteBuffer, Consumer)} but parses every complete frame
+     * straight from the receive array into a {@link StompFrame}, without an intermediate String.
+     */
+    public void decodeNextFrames(ByteBuffer buffer, Consumer<StompFrame> consumer) {
+        scanFrames(buffer, (frameBytes, from, to) -> consumer.accept(StompFrame.parse(frameBytes, from, to)));
+    }
+
+    private void scanFrames(ByteBuffer buffer, FrameHandler handler) {
+        // copy the whole chunk once, then look for NUL terminators in the array
+        int n = buffer.remaining();
+        ensureCapacity(len + n);
+        buffer.get(bytes, len, n);
+
+        int end = len + n;
+        int start = 0;
+        for (int i = len; i < end; i++) {
+            if (bytes[i] == '\u0000') {
+                handler.onFrame(bytes, start, i);
+                start = i + 1;
+            }
+        }
+        // EOLs before a frame are heart-beats, they are dropped instead of piling up while the client is idle
+        while (start < end && (bytes[start] == '\n' || bytes[start] == '\r')) start++;
+
+        // keep the partial frame (if any) at the head of the array
+        len = end - start;
+        if (start > 0 && len > 0) {
+            System.arraycopy(bytes, start, bytes, 0, len);
+        }
+    }
+
     @Override
     public byte[] encode(String message) {
         if (message.isEmpty() || message.charAt(message.length() - 1) != '\u0000') {
@@ -35,9 +76,19 @@ public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
         bytes[len++] = nextByte;
     }
 
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+
     private String popString() {
         String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
         len = 0;
         return result;
     }
-}
\ No newline at end of file
+
+    private interface FrameHandler {
+        void onFrame(byte[] bytes, int from, int to);
+    }
+}
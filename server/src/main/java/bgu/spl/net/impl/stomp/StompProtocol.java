@@ -1,14 +1,23 @@
 package bgu.spl.net.impl.stomp;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import bgu.spl.net.api.StompCommand;
+import bgu.spl.net.api.StompFrame;
 import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.srv.ChannelRegistry;
 import bgu.spl.net.srv.ConnectionsImpl;
 import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.impl.data.LoginStatus;
+import bgu.spl.net.impl.log.DestinationLog;
+import bgu.spl.net.impl.log.MessageLog;
 
 
 public class StompProtocol implements StompMessagingProtocol<String> {
@@ -21,9 +30,26 @@ public class StompProtocol implements StompMessagingProtocol<String> {
     private String username = null;
     private String passcode = null;
     private final Database database = Database.getInstance();
+    private final MessageLog messageLog = MessageLog.getInstance();
     private final Set<String> reportedFiles = new HashSet<>();
+    // subscriptions in the client and client-individual ack modes, by subscription id
+    private final Map<String, ClientSubscription> ackSubscriptions = new HashMap<>();
+    // subscriptions that are still sending their backlog, by subscription id
+    private final Map<String, SubscriptionReplay> replays = new HashMap<>();
 
     private static final AtomicInteger msgId = new AtomicInteger(0);
+    // the window of unacknowledged messages of a client/client-individual subscription when its SUBSCRIBE
+    // has no prefetch header (-Dstomp.prefetch, 0 for no limit), and how many more may wait for it
+    private static final int DEFAULT_PREFETCH = Integer.getInteger("stomp.prefetch", 100);
+    private static final int MAX_PENDING = Integer.getInteger("stomp.maxPending", 10000);
+    // the last -Dstomp.retainMessages frames (0 turns it off) of every destination, no older than
+    // -Dstomp.retainMillis (0 for no age limit), a SUBSCRIBE with a catch-up header gets them first
+    private static final RecentMessages recentMessages = new RecentMessages(
+            Integer.getInteger("stomp.retainMessages", 0),
+            Long.getLong("stomp.retainMillis", 0));
+    // the heart-beat header of CONNECTED, -Dstomp.heartbeat=<send every millis>,<expect every millis>
+    // (0 turns a direction off), a client that sends no heart-beat header gets no heart-beats
+    private static final long[] SERVER_HEARTBEAT = parseHeartbeat(System.getProperty("stomp.heartbeat", "10000,10000"));
 
     @Override
     public void start(int connectionId, ConnectionsImpl<String> connections) {
@@ -33,37 +59,39 @@ public class StompProtocol implements StompMessagingProtocol<String> {
         this.subIdToChannel.clear();
         this.channelToSubId.clear();
         this.reportedFiles.clear();
+        this.ackSubscriptions.clear();
+        this.replays.clear();
         this.loggedIn = false;
         this.username = null;
         this.passcode = null;
     }
 
     @Override
-    public void process(String message) {
-        String[] messageArr = message.split("\n");
-        String command = messageArr[0];
-        switch (command) {
-            case "CONNECT":
-                processConnect(messageArr);
+    public void process(StompFrame frame) {
+        switch (frame.getCommand()) {
+            case CONNECT:
+                processConnect(frame);
                 break;
-            case "SUBSCRIBE":
-                processSubscribe(messageArr);
+            case SUBSCRIBE:
+                processSubscribe(frame);
                 break;
-            case "UNSUBSCRIBE":
-                processUnsubscribe(messageArr);
+            case UNSUBSCRIBE:
+                processUnsubscribe(frame);
                 break;
-            case "SEND":
-                processSend(messageArr);
+            case SEND:
+                processSend(frame);
                 break;
-            case "DISCONNECT":
-                processDisconnect(messageArr);
+            case ACK:
+                processAck(frame, true);
+                break;
+            case NACK:
+                processAck(frame, false);
+                break;
+            case DISCONNECT:
+                processDisconnect(frame);
                 break;
             default: {
-                String receiptId = null;
-                for (String line : messageArr) {
-                    if (line.startsWith("receipt:")) receiptId = line.substring(8);
-                }
-                sendError("Unknown command", receiptId);
+                sendError("Unknown command", frame.getHeader("receipt"));
                 connections.disconnect(connectionId);
                 terminate = true;
                 break;
@@ -71,28 +99,17 @@ public class StompProtocol implements StompMessagingProtocol<String> {
         }
     }
 
-    public void processConnect(String[] messageArr) {
+    public void processConnect(StompFrame frame) {
         if (loggedIn) {
             sendError("Already logged in", null);
             connections.disconnect(connectionId);
             terminate = true;
             return;
         }
-        String accept = null;
-        String receipt = null;
-        String login = null;
-        String pass = null;
-        for (String line : messageArr) {
-            if (line.startsWith("login:")) {
-                login = line.substring(6);
-            } else if (line.startsWith("passcode:")) {
-                pass = line.substring(9);
-            } else if (line.startsWith("accept-version:")) {
-                accept = line.substring(15);
-            } else if (line.startsWith("receipt:")){
-                receipt = line.substring(8);
-            }
-        }
+        String accept = frame.getHeader("accept-version");
+        String receipt = frame.getHeader("receipt");
+        String login = frame.getHeader("login");
+        String pass = frame.getHeader("passcode");
         if (accept == null || !accept.contains("1.2")) {
             sendError("Unsupported STOMP version (need 1.2)", receipt);
             connections.disconnect(connectionId);
@@ -127,31 +144,29 @@ public class StompProtocol implements StompMessagingProtocol<String> {
         this.username = login;
         this.passcode = pass;
         this.loggedIn = true;
-        connections.send(connectionId, "CONNECTED\nversion:1.2\n\n");
+        String heartbeat = frame.getHeader("heart-beat");
+        if (heartbeat == null) {
+            connections.send(connectionId, "CONNECTED\nversion:1.2\n\n");
+        } else {
+            connections.send(connectionId, "CONNECTED\nversion:1.2\nheart-beat:" +
+                    SERVER_HEARTBEAT[0] + "," + SERVER_HEARTBEAT[1] + "\n\n");
+            startHeartbeat(parseHeartbeat(heartbeat));
+        }
         if (receipt != null)
             sendReceipt(receipt);
 
     }
 
-    public void processSubscribe(String[] messageArr) {
+    public void processSubscribe(StompFrame frame) {
         if (!loggedIn) {
             sendError("Not logged in", null);
             connections.disconnect(connectionId);
             terminate = true;
             return;
         }
-        String destination = null;
-        String id = null;
-        String receipt = null;
-        for (String line : messageArr) {
-            if (line.startsWith("destination:")) {
-                destination = line.substring(12);
-            } else if (line.startsWith("id:")) {
-                id = line.substring(3);
-            } else if (line.startsWith("receipt:")) {
-                receipt = line.substring(8);
-            }
-        }
+        String destination = frame.getHeader("destination");
+        String id = frame.getHeader("id");
+        String receipt = frame.getHeader("receipt");
         if (destination == null || id == null) {
             sendError("Missing destination or id", null);
             connections.disconnect(connectionId);
@@ -171,28 +186,94 @@ public class StompProtocol implements StompMessagingProtocol<String> {
             terminate = true;
             return;
         }
+        String ackMode = frame.getHeader("ack");
+        if (ackMode == null) ackMode = "auto";
+        if (!ackMode.equals("auto") && !ackMode.equals("client") && !ackMode.equals("client-individual")) {
+            sendError("Invalid ack mode", receipt);
+            connections.disconnect(connectionId);
+            terminate = true;
+            return;
+        }
+        int prefetch = DEFAULT_PREFETCH;
+        String prefetchHeader = frame.getHeader("prefetch");
+        if (prefetchHeader != null) {
+            try {
+                prefetch = Integer.parseInt(prefetchHeader);
+            } catch (NumberFormatException e) {
+                prefetch = -1;
+            }
+            if (prefetch < 0) {
+                sendError("Invalid prefetch", receipt);
+                connections.disconnect(connectionId);
+                terminate = true;
+                return;
+            }
+        }
+        String fromOffset = frame.getHeader("from-offset");
+        String catchUp = frame.getHeader("catch-up");
+        DestinationLog log = null;
+        long from = 0;
+        int catchUpLimit = 0;
+        if (fromOffset != null) {
+            log = durableLog(destination);
+            if (log == null) {
+                sendError("Destination is not durable", receipt);
+                connections.disconnect(connectionId);
+                terminate = true;
+                return;
+            }
+            try {
+                from = Long.parseLong(fromOffset);
+            } catch (NumberFormatException e) {
+                sendError("Invalid from-offset", receipt);
+                connections.disconnect(connectionId);
+                terminate = true;
+                return;
+            }
+        } else if (catchUp != null) {
+            // catch-up:all or catch-up:<n> for the newest n retained messages
+            try {
+                catchUpLimit = catchUp.equals("all") ? Integer.MAX_VALUE : Integer.parseInt(catchUp);
+            } catch (NumberFormatException e) {
+                sendError("Invalid catch-up", receipt);
+                connections.disconnect(connectionId);
+                terminate = true;
+                return;
+            }
+        }
+        RecentMessages.Ring ring = catchUpLimit > 0 ? recentMessages.forDestination(destination) : null;
         subIdToChannel.put(id, destination);
         channelToSubId.put(destination, id);
-        connections.subscribe(connectionId, destination, id);
-        if (receipt != null)
-            sendReceipt(receipt);
+        ClientSubscription acks = null;
+        if (!ackMode.equals("auto")) {
+            acks = new ClientSubscription(connections, connectionId, id,
+                    ackMode.equals("client-individual"), prefetch, MAX_PENDING);
+            ackSubscriptions.put(id, acks);
+        }
+        //with a backlog the receipt is sent once the replay has caught up
+        if (log != null) {
+            replay(id, destination, acks, log, logBacklog(log, destination), from, receipt);
+        } else if (ring != null) {
+            long start;
+            synchronized (ring) { //the ring's lock is the one retainAndSnapshot holds
+                start = ring.start(catchUpLimit);
+            }
+            replay(id, destination, acks, ring, ring, start, receipt);
+        } else {
+            connections.subscribe(connectionId, destination, id, acks);
+            if (receipt != null)
+                sendReceipt(receipt);
+        }
     }
 
-    public void processUnsubscribe(String[] messageArr) {
+    public void processUnsubscribe(StompFrame frame) {
         if (!loggedIn) {
             sendError("Not logged in", null);
             connections.disconnect(connectionId);
             return;
         }
-        String id = null;
-        String receipt = null;
-        for (String line : messageArr) {
-            if (line.startsWith("id:")) {
-                id = line.substring(3);
-            } else if (line.startsWith("receipt:")) {
-                receipt = line.substring(8);
-            }
-        }
+        String id = frame.getHeader("id");
+        String receipt = frame.getHeader("receipt");
         if (id == null) {
             sendError("Missing id", null);
             connections.disconnect(connectionId);
@@ -205,75 +286,80 @@ public class StompProtocol implements StompMessagingProtocol<String> {
             return;
         }
         String destination = subIdToChannel.get(id);
+        SubscriptionReplay replay = replays.remove(id);
+        if (replay != null) replay.cancel();
         connections.unsubscribe(connectionId, destination);
+        ClientSubscription acks = ackSubscriptions.remove(id);
+        if (acks != null) acks.close();
         subIdToChannel.remove(id);
         channelToSubId.remove(destination);
         if (receipt != null)
             sendReceipt(receipt);
     }
 
-    public void processSend(String[] messageArr) {
+    public void processSend(StompFrame frame) {
         if (!loggedIn) {
             sendError("Not logged in", null);
             connections.disconnect(connectionId);
             terminate = true;
             return;
         }
-        String receipt = null;
-        String destination = null;
-        String file = null;
-        String body = "";
-        boolean bodyStarted = false;
-
-        for (String line : messageArr) {
-            if (line.startsWith("destination:")) {
-                destination = line.substring(12);
-            } else if (line.startsWith("receipt:")){
-                receipt = line.substring(8);
-            } else if (line.startsWith("file:")) {
-                file = line.substring(5);
-            } else if (line.isEmpty()) {
-                if (bodyStarted) {
-                    body += "\n";
-                } else {
-                    bodyStarted = true;
-                }
-            } else if (bodyStarted) {
-                body += line + "\n";
-            }
-        }
+        String receipt = frame.getHeader("receipt");
+        String destination = frame.getHeader("destination");
+        String file = frame.getHeader("file");
         if (destination == null) {
             sendError("Missing destination", receipt);
             connections.disconnect(connectionId);
             terminate = true;
             return;
         }
-        if (body.endsWith("\n")) {
-            body = body.substring(0, body.length() - 1);
-        }
-
-        Map<Integer, String> subs = connections.getSubscribers(destination);
-        if (subs == null)
-            return;
+        ByteBuffer body = stripTrailingNewLines(frame.getBody());
 
-        if (!connections.isSubscribed(connectionId, destination)) {
+        ChannelRegistry.Subscriber[] subs = connections.getSubscribers(destination);
+        // the protocol's own map also has the subscriptions that are still replaying their backlog
+        if (!channelToSubId.containsKey(destination)) {
+            if (subs.length == 0)
+                return;
             sendError("Not subscribed to destination", receipt);
             connections.disconnect(connectionId);
             terminate = true;
             return;
         }
-        for (Map.Entry<Integer, String> e : subs.entrySet()) {
-            int id = e.getKey();
-            String subId = e.getValue();
-
-            String messageToSend = "MESSAGE\ndestination:" + destination +
-                    "\nsubscription:" + subId +
-                    "\nmessage-id:" + msgId.get() +
-                    "\n\n" + body;
-
-            connections.send(id, messageToSend);
+        MessageFrame message;
+        DestinationLog log = durableLog(destination);
+        if (log != null) {
+            // the snapshot is taken after the append, see processSubscribe
+            String failure = null;
+            synchronized (log) {
+                long offset = -1;
+                try {
+                    offset = log.append(body);
+                    if (offset < 0) failure = "Message too large for the durable log";
+                } catch (IOException e) {
+                    System.err.println("Could not append to the log of " + destination + ": " + e.getMessage());
+                    failure = "Could not write to the durable log";
+                }
+                // a message that is not in the log is not sent live either, or a resuming subscriber would miss it
+                if (failure == null) {
+                    message = new MessageFrame(destination, msgId.getAndIncrement(), offset, body);
+                    subs = retainAndSnapshot(destination, message);
+                } else {
+                    message = null;
+                }
+            }
+            if (failure != null) {
+                sendError(failure, receipt);
+                connections.disconnect(connectionId);
+                terminate = true;
+                return;
+            }
+        } else {
+            message = new MessageFrame(destination, msgId.getAndIncrement(), body);
+            subs = retainAndSnapshot(destination, message);
+        }
+        for (ChannelRegistry.Subscriber sub : subs) {
+            deliver(sub.connectionId, sub.subscriptionId, (ClientSubscription) sub.attachment, message);
         }
-        msgId.incrementAndGet();
         if (file != null) {
             String fileKey = username + "\n" + destination + "\n" + file;
             if (reportedFiles.add(fileKey)) {
@@ -284,19 +370,44 @@ public class StompProtocol implements StompMessagingProtocol<String> {
             sendReceipt(receipt);
     }
 
-    public void processDisconnect(String[] messageArr) {
+    /**
+     * ACK (ack is true) or NACK of a message of a client/client-individual subscription, by its ack header.
+     */
+    public void processAck(StompFrame frame, boolean ack) {
         if (!loggedIn) {
             sendError("Not logged in", null);
             connections.disconnect(connectionId);
             terminate = true;
             return;
         }
-        String receiptId = null;
-        for (String line : messageArr) {
-            if (line.startsWith("receipt:")) {
-                receiptId = line.substring(8);
-            }
+        String receipt = frame.getHeader("receipt");
+        String ackId = frame.getHeader("id");
+        if (ackId == null) {
+            sendError("Missing id", receipt);
+            connections.disconnect(connectionId);
+            terminate = true;
+            return;
+        }
+        String subId = ClientSubscription.subscriptionOf(ackId);
+        ClientSubscription acks = subId == null ? null : ackSubscriptions.get(subId);
+        if (acks == null || !(ack ? acks.ack(ackId) : acks.nack(ackId))) {
+            sendError("Unknown ack id", receipt);
+            connections.disconnect(connectionId);
+            terminate = true;
+            return;
         }
+        if (receipt != null)
+            sendReceipt(receipt);
+    }
+
+    public void processDisconnect(StompFrame frame) {
+        if (!loggedIn) {
+            sendError("Not logged in", null);
+            connections.disconnect(connectionId);
+            terminate = true;
+            return;
+        }
+        String receiptId = frame.getHeader("receipt");
         if (receiptId != null) {
             String receiptMessage = "RECEIPT\nreceipt-id:" + receiptId + "\n\n";
             connections.send(connectionId, receiptMessage);
@@ -306,9 +417,8 @@ public class StompProtocol implements StompMessagingProtocol<String> {
             terminate = true;
             return;
         }
-        for (String channel : channelToSubId.keySet()) {
-            connections.unsubscribe(connectionId, channel);
-        }
+        connections.unsubscribeAll(connectionId);
+        closeSubscriptions();
         subIdToChannel.clear();
         channelToSubId.clear();
         terminate = true;
@@ -316,6 +426,88 @@ public class StompProtocol implements StompMessagingProtocol<String> {
         connections.disconnect(connectionId);
     }
 
+    /**
+     * Negotiates as STOMP 1.2 does: each direction uses the larger of what its sender can do and what
+     * its receiver wants, and is off if either side has 0 for it.
+     */
+    private void startHeartbeat(long[] client) {
+        long send = SERVER_HEARTBEAT[0] == 0 || client[1] == 0 ? 0 : Math.max(SERVER_HEARTBEAT[0], client[1]);
+        long expect = SERVER_HEARTBEAT[1] == 0 || client[0] == 0 ? 0 : Math.max(SERVER_HEARTBEAT[1], client[0]);
+        if (send > 0 || expect > 0) {
+            connections.startHeartbeat(connectionId, send, expect);
+        }
+    }
+
+    /**
+     * @return the two values of a heart-beat header, 0,0 if it is malformed
+     */
+    private static long[] parseHeartbeat(String value) {
+        String[] parts = value.split(",");
+        if (parts.length == 2) {
+            try {
+                long first = Long.parseLong(parts[0].trim());
+                long second = Long.parseLong(parts[1].trim());
+                if (first >= 0 && second >= 0) {
+                    return new long[]{first, second};
+                }
+            } catch (NumberFormatException ignored) {}
+        }
+        return new long[]{0, 0};
+    }
+
+    private void closeSubscriptions() {
+        for (ClientSubscription acks : ackSubscriptions.values()) acks.close();
+        ackSubscriptions.clear();
+        for (SubscriptionReplay replay : replays.values()) replay.cancel();
+        replays.clear();
+    }
+
+    /**
+     * Starts sending the backlog of a new subscription in pages, see {@link SubscriptionReplay}.
+     * The subscription goes live and the receipt (if any) is sent once it has caught up.
+     */
+    private void replay(String id, String destination, ClientSubscription acks, Object lock,
+                        SubscriptionReplay.Backlog backlog, long from, String receipt) {
+        SubscriptionReplay replay = new SubscriptionReplay(connections, connectionId, acks, lock, backlog, from) {
+            @Override
+            protected void deliver(MessageFrame message) {
+                StompProtocol.this.deliver(connectionId, id, acks, message);
+            }
+
+            @Override
+            protected void subscribe() {
+                connections.subscribe(connectionId, destination, id, acks);
+            }
+
+            @Override
+            protected void caughtUp() {
+                replays.remove(id);
+                if (receipt != null)
+                    sendReceipt(receipt);
+            }
+        };
+        replays.put(id, replay);
+        replay.run();
+    }
+
+    /**
+     * The records of a durable log as MESSAGE frames, the cursor is the log offset.
+     */
+    private static SubscriptionReplay.Backlog logBacklog(DestinationLog log, String destination) {
+        return new SubscriptionReplay.Backlog() {
+            @Override
+            public long read(long cursor, int maxFrames, long maxBytes, List<MessageFrame> page) {
+                return log.read(cursor, maxFrames, maxBytes, (offset, timestamp, body) ->
+                        page.add(new MessageFrame(destination, msgId.getAndIncrement(), offset, body)));
+            }
+
+            @Override
+            public long end() {
+                return log.getEndOffset();
+            }
+        };
+    }
+
     public void sendError(String errorMessage, String receiptId) { // SEND RECEIPT ID??????
         if(receiptId != null) {
             String errorResponse = "ERROR\nmessage:" + errorMessage + "\nreceipt-id:" + receiptId + "\n\n";
@@ -326,11 +518,70 @@ public class StompProtocol implements StompMessagingProtocol<String> {
         }
     }
 
+    /**
+     * Sends a MESSAGE on a subscription, through its ack window if it is in a client ack mode.
+     */
+    private void deliver(int target, String subscriptionId, ClientSubscription acks, MessageFrame message) {
+        if (acks == null) {
+            connections.sendEncoded(target, message.forSubscription(subscriptionId));
+        } else {
+            acks.deliver(message);
+        }
+    }
+
+    /**
+     * Keeps the message in the destination's ring (if retaining is on) and takes the subscriber snapshot
+     * under the ring's lock, so a subscriber that catches up gets every message either from the ring or live.
+     */
+    private ChannelRegistry.Subscriber[] retainAndSnapshot(String destination, MessageFrame message) {
+        RecentMessages.Ring ring = recentMessages.forDestination(destination);
+        if (ring == null) {
+            return connections.getSubscribers(destination);
+        }
+        synchronized (ring) {
+            ring.add(message);
+            return connections.getSubscribers(destination);
+        }
+    }
+
+    /**
+     * @return the durable log of the destination, or null if it is not durable or its log can not be opened
+     */
+    private DestinationLog durableLog(String destination) {
+        try {
+            return messageLog.forDestination(destination);
+        } catch (UncheckedIOException e) {
+            System.err.println("Could not open the log of " + destination + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static ByteBuffer stripTrailingNewLines(ByteBuffer body) {
+        int end = body.limit();
+        while (end > body.position() && body.get(end - 1) == '\n') end--;
+        body.limit(end);
+        return body;
+    }
+
     private void sendReceipt(String receiptId) {
         String receiptMessage = "RECEIPT\nreceipt-id:" + receiptId + "\n\n";
         connections.send(connectionId, receiptMessage);
     }
 
+    /**
+     * A client that goes away without a DISCONNECT (or is closed for its silence) is logged out here,
+     * so that it can log in again.
+     */
+    @Override
+    public void connectionClosed() {
+        closeSubscriptions();
+        if (loggedIn) {
+            database.logout(connectionId);
+            loggedIn = false;
+        }
+        terminate = true;
+    }
+
     @Override
     public boolean shouldTerminate() {
         return terminate;
@@ -1,18 +1,24 @@
 package bgu.spl.net.impl.stomp;
 import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.srv.Server;
 
 public class StompServer {
 
+    private static final String USAGE = "Usage: StompServer <port> <tpc|vtpc|reactor> [workerThreads] [selectorThreads]";
+
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("Usage: StompServer <port> <tpc|reactor>");
+            System.out.println(USAGE);
             return;
         }
 
         int port = Integer.parseInt(args[0]);
         String serverType = args[1];
 
+        // load the user registry before accepting connections instead of on the first CONNECT
+        Database.getInstance();
+
         if (serverType.equals("tpc")) {
             Server<String> server = Server.threadPerClient(
                     port,
@@ -21,11 +27,23 @@ public class StompServer {
             );
             server.serve();
 
+        } else if (serverType.equals("vtpc")) {
+            Server<String> server = Server.virtualThreadPerClient(
+                    port,
+                    () -> (StompMessagingProtocol<String>) new StompProtocol(),
+                    () -> new StompEncoderDecoder()
+            );
+            server.serve();
+
         } else if (serverType.equals("reactor")) {
-            int nThreads = 4;
+            int nThreads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+            int nSelectors = args.length > 3
+                    ? Integer.parseInt(args[3])
+                    : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
 
             Server<String> server = Server.reactor(
                     nThreads,
+                    nSelectors,
                     port,
                     () -> (StompMessagingProtocol<String>) new StompProtocol(),
                     () -> new StompEncoderDecoder()
@@ -34,7 +52,7 @@ public class StompServer {
 
         } else {
             System.out.println("Unknown server type: " + serverType);
-            System.out.println("Usage: StompServer <port> <tpc|reactor>");
+            System.out.println(USAGE);
         }
     }
 }
@@ -0,0 +1,115 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.ArrayList;
+import java.util.List;
+import bgu.spl.net.srv.ConnectionsImpl;
+
+/**
+ * Sends the backlog of a new subscription before it goes live, in pages of at most
+ * -Dstomp.replayPageFrames frames (default 256) and -Dstomp.replayPageBytes bytes (default 256k).
+ * The next page is only read once the connection has written the previous one and, in the client ack modes,
+ * once the subscription has no messages waiting for its window, so a long backlog never goes over the
+ * outbound limits or the subscription's pending limit. The backlog's lock is held for one page at a time.
+ * When the last page is read the subscription is added under that same lock, so every message published
+ * meanwhile is either in the backlog or sent live, never both and never neither.
+ * A replay runs on the thread that processes the connection's frames.
+ */
+public abstract class SubscriptionReplay implements Runnable {
+
+    private static final int PAGE_FRAMES = Integer.getInteger("stomp.replayPageFrames", 256);
+    private static final long PAGE_BYTES = Long.getLong("stomp.replayPageBytes", 256L << 10);
+
+    /**
+     * Frames in order by a cursor (an offset or a sequence number). The methods are called with the
+     * monitor of the replay's lock held.
+     */
+    public interface Backlog {
+        /**
+         * Adds the frames from the cursor on to the page, at most {@code maxFrames} and, after the first one,
+         * no more than {@code maxBytes}. A cursor older than the backlog starts at its oldest frame.
+         * @return the cursor after the last frame added
+         */
+        long read(long cursor, int maxFrames, long maxBytes, List<MessageFrame> page);
+
+        /**
+         * @return the cursor after the newest frame
+         */
+        long end();
+    }
+
+    private final ConnectionsImpl<String> connections;
+    private final int connectionId;
+    private final ClientSubscription acks;
+    private final Object lock;
+    private final Backlog backlog;
+    private long cursor;
+    private boolean cancelled = false;
+
+    /**
+     * @param acks the window of a client ack mode subscription, null in the auto mode
+     * @param lock the monitor publishers hold while they add to the backlog and take the subscriber snapshot
+     */
+    public SubscriptionReplay(ConnectionsImpl<String> connections, int connectionId, ClientSubscription acks,
+                              Object lock, Backlog backlog, long from) {
+        this.connections = connections;
+        this.connectionId = connectionId;
+        this.acks = acks;
+        this.lock = lock;
+        this.backlog = backlog;
+        this.cursor = from;
+    }
+
+    /**
+     * Sends the next page, then either schedules the one after it or makes the subscription live.
+     */
+    @Override
+    public void run() {
+        if (cancelled) return;
+        if (acks != null && acks.whenDrained(this)) return;
+        List<MessageFrame> page = new ArrayList<>();
+        boolean last;
+        synchronized (lock) {
+            cursor = backlog.read(cursor, PAGE_FRAMES, PAGE_BYTES, page);
+            last = cursor >= backlog.end();
+            if (last) {
+                //the last page is sent under the lock, live messages can only come after it
+                deliverAll(page);
+                subscribe();
+            }
+        }
+        if (last) {
+            caughtUp();
+            return;
+        }
+        deliverAll(page);
+        connections.afterFlush(connectionId, this);
+    }
+
+    private void deliverAll(List<MessageFrame> page) {
+        for (MessageFrame message : page) {
+            deliver(message);
+        }
+    }
+
+    /**
+     * Stops the replay, the subscription is not added.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Sends a frame of the backlog on the subscription.
+     */
+    protected abstract void deliver(MessageFrame message);
+
+    /**
+     * Makes the subscription live, called with the lock held.
+     */
+    protected abstract void subscribe();
+
+    /**
+     * Called once after the subscription is live, without the lock.
+     */
+    protected abstract void caughtUp();
+}
@@ -0,0 +1,16 @@
+package bgu.spl.net.srv;
+
+/**
+ * Runs tasks on behalf of actors: tasks of the same actor run one at a time and in submission order,
+ * tasks of different actors may run in parallel.
+ */
+public interface ActorExecutor {
+
+    /**
+     * @param mailbox the mailbox of the actor that the task belongs to
+     * @param r the task
+     */
+    void submit(Mailbox mailbox, Runnable r);
+
+    void shutdown();
+}
@@ -11,7 +11,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-public class ActorThreadPool {
+public class ActorThreadPool implements ActorExecutor {
 
     private final Map<Object, Queue<Runnable>> acts;
     private final ReadWriteLock actsRWLock;
@@ -36,6 +36,12 @@ public class ActorThreadPool {
         }
     }
 
+    @Override
+    public void submit(Mailbox mailbox, Runnable r) {
+        submit((Object) mailbox, r);
+    }
+
+    @Override
     public void shutdown() {
         threads.shutdownNow();
     }
@@ -20,6 +20,8 @@ public abstract class BaseServer<T> implements Server<T> {
 
     protected final ConnectionsImpl<T> connections = new ConnectionsImpl<>();
     protected final AtomicInteger nextId = new AtomicInteger(0);
+    // per connection outbound queue limits, the same ones as the reactor's
+    protected final OutboundLimits outboundLimits = OutboundLimits.fromProperties();
 
     public BaseServer(
             int port,
@@ -47,18 +49,21 @@ public abstract class BaseServer<T> implements Server<T> {
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
                         encdecFactory.get(),
-                        protocolFactory.get());
+                        protocolFactory.get(),
+                        outboundLimits);
 
                 int connectionId = nextId.getAndIncrement();
                 connections.addConnection(connectionId, handler);
                 handler.start(connectionId, connections);
 
                 execute(handler);
+                execute(handler.writer());
             }
         } catch (IOException ex) {
         }
 
         System.out.println("server closed!!!");
+        System.out.println("outbound limits: " + outboundLimits);
     }
 
     @Override
@@ -67,6 +72,9 @@ public abstract class BaseServer<T> implements Server<T> {
 			sock.close();
     }
 
-    protected abstract void execute(BlockingConnectionHandler<T>  handler);
+    /**
+     * Runs a task of a connection on its own thread, every connection has a reading task and a writing task.
+     */
+    protected abstract void execute(Runnable task);
 
 }
@@ -1,66 +1,323 @@
 package bgu.spl.net.srv;
 
 import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+import bgu.spl.net.api.StompFrame;
 import bgu.spl.net.api.StompMessagingProtocol;
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
+/**
+ * A thread per client connection. The reading thread runs {@link #run()} and the frames sent to the client
+ * are queued and written by a second, dedicated writer ({@link #writer()}), so a thread that publishes to
+ * this client never blocks on its socket. The queue is bounded by the same {@link OutboundLimits} as the
+ * reactor's, so a client that stops reading holds a bounded amount of memory.
+ * {@link #afterFlush} tasks run on the writer, a lock taken for every frame and every task keeps them from
+ * running together with the reader's frames.
+ * Heart-beats need no timer here: the writer sends one when its queue stays empty for the interval and the
+ * socket's read timeout closes a silent client.
+ */
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_CHUNK_SIZE = 1 << 13; //8k
+    private static final int WRITE_CHUNK_SIZE = 1 << 13; //8k
+    // a client that sends nothing for this many of its negotiated heart-beat intervals is considered dead
+    private static final int SILENT_INTERVALS = 2;
+
     private final StompMessagingProtocol<T> protocol;
     private final StompEncoderDecoder encdec;
     private final Socket sock;
-    private BufferedInputStream in;
-    private BufferedOutputStream out;
+    private InputStream in;
+    // the socket is read straight into this array (no BufferedInputStream copy in between)
+    // and every chunk is handed to the decoder as a whole, both are reused for the whole connection
+    private final byte[] readChunk = new byte[READ_CHUNK_SIZE];
+    private final ByteBuffer readBuffer = ByteBuffer.wrap(readChunk);
+    private final Consumer<StompFrame> frameConsumer = this::onFrame;
     private volatile boolean connected = true;
+    // held while a frame or an afterFlush task is processed, so the protocol only sees one thread at a time.
+    // It is taken per frame rather than per chunk so the writer's tasks are not held up by a whole chunk
+    private final ReentrantLock protocolLock = new ReentrantLock();
+    // a lock instead of synchronized so that an idle writer on a virtual thread does not pin its carrier
+    private final ReentrantLock outboundLock = new ReentrantLock();
+    private final Condition outboundChanged = outboundLock.newCondition();
+    // guarded by outboundLock, together with queuedFrames, queuedBytes, flushTasks and endOfStream; the counters
+    // also include the batch the writer has taken out of the queue and not written yet
+    private final ArrayDeque<ByteBuffer[]> outbound = new ArrayDeque<>();
+    private int queuedFrames = 0;
+    private long queuedBytes = 0;
+    // set by close, the writer writes what is queued and closes the socket
+    private boolean endOfStream = false;
+    private final List<Runnable> flushTasks = new ArrayList<>();
+    private final OutboundLimits limits;
+    private volatile long heartbeatMillis = 0; //0 while outbound heart-beats are off
+    private int connectionId;
+    private ConnectionsImpl<T> connections;
 
-    public BlockingConnectionHandler(Socket sock, StompEncoderDecoder reader, StompMessagingProtocol<T> protocol) {
+    public BlockingConnectionHandler(Socket sock, StompEncoderDecoder reader, StompMessagingProtocol<T> protocol,
+                                     OutboundLimits limits) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
+        this.limits = limits;
     }
 
     public void start(int connectionId, ConnectionsImpl<T> connections) {
+        this.connectionId = connectionId;
+        this.connections = connections;
         protocol.start(connectionId, connections);
     }
 
     @Override
     public void run() {
-        try (Socket sock = this.sock) { //just for automatic closing
+        try {
             int read;
 
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+            in = sock.getInputStream();
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                String nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null)    protocol.process(nextMessage);
+            while (!protocol.shouldTerminate() && connected && (read = in.read(readChunk)) >= 0) {
+                readBuffer.clear();
+                readBuffer.limit(read);
+                encdec.decodeNextFrames(readBuffer, frameConsumer);
             }
 
+        } catch (SocketTimeoutException ex) {
+            //the client stopped sending heart-beats, it is closed like one that went away
         } catch (IOException ex) {
-            ex.printStackTrace();
+            if (connected) ex.printStackTrace();
+        } finally {
+            close(); //the writer closes the socket once the frames queued so far are written
+            protocolLock.lock();
+            try {
+                protocol.connectionClosed();
+                connections.connectionClosed(connectionId);
+            } finally {
+                protocolLock.unlock();
+            }
         }
 
     }
 
+    private void onFrame(StompFrame frame) {
+        protocolLock.lock();
+        try {
+            //frames that arrive after a DISCONNECT in the same chunk are ignored
+            if (!protocol.shouldTerminate()) protocol.process(frame);
+        } finally {
+            protocolLock.unlock();
+        }
+    }
+
+    /**
+     * @return the task that writes the queued frames of this connection, it has to run on its own thread
+     */
+    public Runnable writer() {
+        return this::writeLoop;
+    }
+
+    /**
+     * Takes everything that is queued, writes it and flushes once for the whole batch.
+     */
+    private void writeLoop() {
+        List<ByteBuffer[]> batch = new ArrayList<>();
+        byte[] chunk = new byte[WRITE_CHUNK_SIZE];
+        try (Socket sock = this.sock) { //just for automatic closing
+            OutputStream out = new BufferedOutputStream(sock.getOutputStream(), WRITE_CHUNK_SIZE);
+            long lastWrite = System.currentTimeMillis();
+            boolean done = false;
+            while (!done) {
+                boolean heartbeat = false;
+                List<Runnable> tasks = null;
+                outboundLock.lock();
+                try {
+                    while (outbound.isEmpty() && !endOfStream && flushTasks.isEmpty()) {
+                        long every = heartbeatMillis;
+                        if (every <= 0) {
+                            outboundChanged.await();
+                            continue;
+                        }
+                        long quiet = System.currentTimeMillis() - lastWrite;
+                        if (quiet >= every) { //nothing was sent for a whole interval
+                            heartbeat = true;
+                            break;
+                        }
+                        outboundChanged.awaitNanos(TimeUnit.MILLISECONDS.toNanos(every - quiet));
+                    }
+                    batch.addAll(outbound);
+                    outbound.clear();
+                    done = endOfStream;
+                } finally {
+                    outboundLock.unlock();
+                }
+                long written = 0;
+                if (heartbeat) {
+                    out.write('\n');
+                }
+                for (ByteBuffer[] frame : batch) {
+                    //the parts are shared read only buffers, so their bytes are copied out in chunks
+                    for (ByteBuffer part : frame) {
+                        while (part.hasRemaining()) {
+                            int n = Math.min(part.remaining(), chunk.length);
+                            part.get(chunk, 0, n);
+                            out.write(chunk, 0, n);
+                            written += n;
+                        }
+                    }
+                }
+                if (heartbeat || !batch.isEmpty()) {
+                    out.flush();
+                    lastWrite = System.currentTimeMillis();
+                }
+                outboundLock.lock();
+                try {
+                    queuedFrames -= batch.size();
+                    queuedBytes -= written;
+                    if (outbound.isEmpty() && !flushTasks.isEmpty() && !done) {
+                        tasks = new ArrayList<>(flushTasks);
+                        flushTasks.clear();
+                    }
+                } finally {
+                    outboundLock.unlock();
+                }
+                batch.clear();
+                if (tasks != null) {
+                    for (Runnable task : tasks) {
+                        protocolLock.lock();
+                        try {
+                            task.run();
+                        } finally {
+                            protocolLock.unlock();
+                        }
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            connected = false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops the connection, frames that were already sent to it are still written before the socket is closed.
+     */
     @Override
-    public void close() throws IOException {
+    public void close() {
+        if (!connected) return;
         connected = false;
-        sock.close();
+        outboundLock.lock();
+        try {
+            endOfStream = true;
+            outboundChanged.signal();
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    @Override
+    public void afterFlush(Runnable task) {
+        outboundLock.lock();
+        try {
+            if (!connected) return;
+            flushTasks.add(task);
+            outboundChanged.signal(); //the writer runs it once the queue is written
+        } finally {
+            outboundLock.unlock();
+        }
+    }
+
+    @Override
+    public void startHeartbeat(long sendEveryMillis, long expectEveryMillis) {
+        if (expectEveryMillis > 0) {
+            try {
+                sock.setSoTimeout((int) Math.min(Integer.MAX_VALUE, expectEveryMillis * SILENT_INTERVALS));
+            } catch (SocketException ex) {
+                ex.printStackTrace();
+            }
+        }
+        if (sendEveryMillis > 0) {
+            outboundLock.lock();
+            try {
+                heartbeatMillis = sendEveryMillis;
+                outboundChanged.signal(); //the writer may be waiting without a timeout
+            } finally {
+                outboundLock.unlock();
+            }
+        }
     }
 
     @Override
     public void send(T msg) {
-    try {
-        synchronized (this) {
-            out.write(encdec.encode((String) msg));
-            out.flush();
+        sendEncoded(ByteBuffer.wrap(encdec.encode((String) msg)));
+    }
+
+    /**
+     * Queues a frame for the writer. When the queue is over its {@link OutboundLimits} the slow consumer
+     * policy decides what is dropped, as in {@link NonBlockingConnectionHandler#sendEncoded}.
+     */
+    @Override
+    public void sendEncoded(ByteBuffer... frame) {
+        long size = remaining(frame);
+        boolean disconnect = false;
+        outboundLock.lock();
+        try {
+            if (!connected) return;
+            //a frame is always accepted when nothing is waiting, however large it is
+            if (queuedFrames > 0 && limits.exceeded(queuedFrames, queuedBytes, size)) {
+                switch (limits.getPolicy()) {
+                    case DROP_NEWEST:
+                        limits.recordDroppedNewest();
+                        return;
+                    case DROP_OLDEST:
+                        //the batch the writer took is already on its way, only what still waits is dropped
+                        int dropped = 0;
+                        while (!outbound.isEmpty() && limits.exceeded(queuedFrames, queuedBytes, size)) {
+                            queuedBytes -= remaining(outbound.poll());
+                            queuedFrames--;
+                            dropped++;
+                        }
+                        limits.recordDroppedOldest(dropped);
+                        break;
+                    default:
+                        limits.recordDisconnect();
+                        while (!outbound.isEmpty()) {
+                            queuedBytes -= remaining(outbound.poll());
+                            queuedFrames--;
+                        }
+                        frame = new ByteBuffer[]{ ByteBuffer.wrap(encdec.encode(limits.slowConsumerError())) };
+                        size = remaining(frame);
+                        disconnect = true;
+                }
+            }
+            outbound.add(frame);
+            queuedFrames++;
+            queuedBytes += size;
+            outboundChanged.signal();
+        } finally {
+            outboundLock.unlock();
+        }
+        if (disconnect) {
+            close(); //after the ERROR frame
+            connections.disconnect(connectionId); //no more frames are routed here
         }
-    } catch (IOException e) {
-        connected = false;
-        try { close(); } catch (IOException ignore) {  }
     }
+
+    private static long remaining(ByteBuffer[] frame) {
+        long remaining = 0;
+        for (ByteBuffer part : frame) {
+            remaining += part.remaining();
         }
+        return remaining;
+    }
 }
@@ -0,0 +1,132 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct buffers in power of two size classes, each with a shared queue of free buffers.
+ * There is no per thread cache: in the reactor the selector threads lease and the actor threads release,
+ * so buffers cached by the releasing thread would never be leased again. The direct memory retained by
+ * the pool never goes over a hard cap, buffers released beyond it are left to the garbage collector.
+ */
+public class BufferPool {
+
+    private final int minSize;
+    private final int maxSize;
+    private final long maxRetainedBytes;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] shared;
+
+    private final AtomicLong retainedBytes = new AtomicLong(0);
+    private final AtomicLong pooled = new AtomicLong(0);
+    private final AtomicLong leased = new AtomicLong(0);
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    /**
+     * @param minSize the smallest size class, a power of two
+     * @param maxSize the largest size class, a power of two
+     * @param maxRetainedBytes the most direct memory kept by the pool while no one is using it
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int minSize, int maxSize, long maxRetainedBytes) {
+        if (Integer.bitCount(minSize) != 1 || Integer.bitCount(maxSize) != 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("size classes must be powers of two, got " + minSize + ".." + maxSize);
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxRetainedBytes = maxRetainedBytes;
+        int classes = Integer.numberOfTrailingZeros(maxSize) - Integer.numberOfTrailingZeros(minSize) + 1;
+        this.shared = new ConcurrentLinkedQueue[classes];
+        for (int i = 0; i < classes; i++) {
+            shared[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * @return a cleared direct buffer of at least the given size, from the smallest size class that fits
+     */
+    public ByteBuffer lease(int size) {
+        leased.incrementAndGet();
+        if (size > maxSize) {
+            allocated.increment();
+            return ByteBuffer.allocateDirect(size); //not pooled, dropped on release
+        }
+        int sizeClass = sizeClass(size);
+        ByteBuffer buff = shared[sizeClass].poll();
+        if (buff == null) {
+            allocated.increment();
+            return ByteBuffer.allocateDirect(minSize << sizeClass);
+        }
+        pooled.decrementAndGet();
+        retainedBytes.addAndGet(-buff.capacity());
+        buff.clear();
+        return buff;
+    }
+
+    /**
+     * Gives back a buffer that was leased from this pool, it must not be used after that.
+     */
+    public void release(ByteBuffer buff) {
+        leased.decrementAndGet();
+        int capacity = buff.capacity();
+        if (capacity > maxSize || !reserve(capacity)) {
+            discarded.increment();
+            return;
+        }
+        pooled.incrementAndGet();
+        shared[sizeClass(capacity)].add(buff);
+    }
+
+    private boolean reserve(int bytes) {
+        while (true) {
+            long retained = retainedBytes.get();
+            if (retained + bytes > maxRetainedBytes) return false;
+            if (retainedBytes.compareAndSet(retained, retained + bytes)) return true;
+        }
+    }
+
+    private int sizeClass(int size) {
+        if (size <= minSize) return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(minSize);
+    }
+
+    /**
+     * @return the number of buffers that are leased and not released yet
+     */
+    public long getLeased() {
+        return leased.get();
+    }
+
+    /**
+     * @return the number of free buffers kept by the pool
+     */
+    public long getPooled() {
+        return pooled.get();
+    }
+
+    /**
+     * @return the number of buffers the pool allocated since it was created
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * @return the number of released buffers that were not kept because of the cap
+     */
+    public long getDiscarded() {
+        return discarded.sum();
+    }
+
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("leased=%d pooled=%d allocated=%d discarded=%d retainedBytes=%d maxRetainedBytes=%d",
+                getLeased(), getPooled(), getAllocated(), getDiscarded(), getRetainedBytes(), maxRetainedBytes);
+    }
+}
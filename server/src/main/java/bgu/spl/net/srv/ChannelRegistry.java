@@ -0,0 +1,88 @@
+package bgu.spl.net.srv;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The subscribers of every channel, published as immutable array snapshots.
+ * Fan-out reads a snapshot with a single map lookup and iterates it with no hashing or
+ * iterator allocation, subscribe/unsubscribe copy the array and swap it atomically.
+ * This favours the common case where messages are far more frequent than subscription changes.
+ */
+public class ChannelRegistry {
+
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+    private final ConcurrentHashMap<String, Subscriber[]> channels = new ConcurrentHashMap<>();
+
+    /**
+     * @return the current subscribers of the channel, never null. the array must not be modified
+     */
+    public Subscriber[] subscribers(String channel) {
+        Subscriber[] subs = channels.get(channel);
+        return subs == null ? NO_SUBSCRIBERS : subs;
+    }
+
+    /**
+     * Adds (or replaces) the subscription of the given connection to the channel.
+     */
+    public void add(String channel, int connectionId, String subscriptionId) {
+        add(channel, connectionId, subscriptionId, null);
+    }
+
+    /**
+     * Like {@link #add(String, int, String)}, with an object of the protocol kept on the subscriber.
+     */
+    public void add(String channel, int connectionId, String subscriptionId, Object attachment) {
+        Subscriber added = new Subscriber(connectionId, subscriptionId, attachment);
+        channels.compute(channel, (ch, subs) -> {
+            if (subs == null) return new Subscriber[]{added};
+            int i = indexOf(subs, connectionId);
+            Subscriber[] next;
+            if (i >= 0) {
+                next = subs.clone();
+                next[i] = added;
+            } else {
+                next = Arrays.copyOf(subs, subs.length + 1);
+                next[subs.length] = added;
+            }
+            return next;
+        });
+    }
+
+    /**
+     * Removes the subscription of the given connection to the channel, the channel itself is
+     * dropped once it has no subscribers left.
+     */
+    public void remove(String channel, int connectionId) {
+        channels.computeIfPresent(channel, (ch, subs) -> {
+            int i = indexOf(subs, connectionId);
+            if (i < 0) return subs;
+            if (subs.length == 1) return null;
+            Subscriber[] next = new Subscriber[subs.length - 1];
+            System.arraycopy(subs, 0, next, 0, i);
+            System.arraycopy(subs, i + 1, next, i, subs.length - i - 1);
+            return next;
+        });
+    }
+
+    private static int indexOf(Subscriber[] subs, int connectionId) {
+        for (int i = 0; i < subs.length; i++) {
+            if (subs[i].connectionId == connectionId) return i;
+        }
+        return -1;
+    }
+
+    public static final class Subscriber {
+        public final int connectionId;
+        public final String subscriptionId;
+        // per subscription state of the protocol (like acknowledgements), null if it needs none
+        public final Object attachment;
+
+        Subscriber(int connectionId, String subscriptionId, Object attachment) {
+            this.connectionId = connectionId;
+            this.subscriptionId = subscriptionId;
+            this.attachment = attachment;
+        }
+    }
+}
@@ -6,6 +6,7 @@
 package bgu.spl.net.srv;
 
 import java.io.Closeable;
+import java.nio.ByteBuffer;
 
 /**
  * The ConnectionHandler interface for Message of type T
@@ -19,4 +20,28 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Sends a frame that is already encoded, given as consecutive parts that are written in order
+     * and never interleaved with another frame. The buffers may be shared with other connections,
+     * so implementations only read from them (callers pass each connection its own duplicate).
+     */
+    void sendEncoded(ByteBuffer... frame);
+
+    /**
+     * Starts the heart-beats negotiated on CONNECT: an EOL is sent whenever nothing else was sent for
+     * {@code sendEveryMillis}, and the connection is closed once nothing arrived from the client for longer
+     * than {@code expectEveryMillis} allows. 0 turns a direction off. Does nothing by default.
+     */
+    default void startHeartbeat(long sendEveryMillis, long expectEveryMillis) {
+    }
+
+    /**
+     * Runs the task on the thread that processes this connection's frames (never concurrently with them)
+     * once the frames sent so far are written. The task is dropped if the connection closes first.
+     * Runs it right away by default.
+     */
+    default void afterFlush(Runnable task) {
+        task.run();
+    }
+
 }
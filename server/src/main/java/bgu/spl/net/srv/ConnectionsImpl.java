@@ -1,39 +1,55 @@
 package bgu.spl.net.srv;
 
 import java.io.IOException;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ConnectionsImpl<T> implements Connections<T> {
 
     private final ConcurrentHashMap<Integer, ConnectionHandler<T>> handlers = new ConcurrentHashMap<>();
 
-    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, String>> channelSubs = new ConcurrentHashMap<>();
-
+    private final ChannelRegistry channelSubs = new ChannelRegistry();
 
+    // reverse index of channelSubs, the channels each connection is subscribed to
+    private final ConcurrentHashMap<Integer, Set<String>> connectionChannels = new ConcurrentHashMap<>();
 
     public void addConnection(int connectionId, ConnectionHandler<T> handler) {
         handlers.put(connectionId, handler);
     }
 
     public void subscribe(int connectionId, String channel, String subId) {
-        if(!channelSubs.keySet().contains(channel)) {
-            channelSubs.put(channel, new ConcurrentHashMap<>());
-        }
-        channelSubs.get(channel).put(connectionId, subId);
+        subscribe(connectionId, channel, subId, null);
+    }
+
+    /**
+     * Subscribes with an object of the protocol that fan-out finds on the {@link ChannelRegistry.Subscriber}.
+     */
+    public void subscribe(int connectionId, String channel, String subId, Object attachment) {
+        channelSubs.add(channel, connectionId, subId, attachment);
+        connectionChannels.computeIfAbsent(connectionId, id -> ConcurrentHashMap.newKeySet()).add(channel);
     }
 
     public void unsubscribe(int connectionId, String channel) {
-        ConcurrentHashMap<Integer, String> subs = channelSubs.get(channel);
-        if (subs != null) {
-            subs.remove(connectionId);
-            if (subs.isEmpty()) channelSubs.remove(channel, subs);
+        Set<String> channels = connectionChannels.get(connectionId);
+        if (channels != null) channels.remove(channel);
+        channelSubs.remove(channel, connectionId);
+    }
+
+    /**
+     * Removes all the subscriptions of the given connection, touching only the channels it is subscribed to.
+     */
+    public void unsubscribeAll(int connectionId) {
+        Set<String> channels = connectionChannels.remove(connectionId);
+        if (channels == null) return;
+        for (String channel : channels) {
+            channelSubs.remove(channel, connectionId);
         }
     }
 
     public boolean isSubscribed(int connectionId, String channel) {
-        ConcurrentHashMap<Integer, String> subs = channelSubs.get(channel);
-        return subs != null && subs.containsKey(connectionId);
+        Set<String> channels = connectionChannels.get(connectionId);
+        return channels != null && channels.contains(channel);
     }
 
     @Override
@@ -49,24 +65,37 @@ public class ConnectionsImpl<T> implements Connections<T> {
         }
     }
 
+    /**
+     * Sends an already encoded frame to a single connection, see {@link ConnectionHandler#sendEncoded}.
+     */
+    public boolean sendEncoded(int connectionId, ByteBuffer... frame) {
+        ConnectionHandler<T> h = handlers.get(connectionId);
+        if (h == null) return false;
+        try {
+            h.sendEncoded(frame);
+            return true;
+        } catch (Exception e) {
+            disconnect(connectionId);
+            return false;
+        }
+    }
+
     @Override
     public void send(String channel, T msg) {
-        Map<Integer, String> subs = channelSubs.get(channel);
-        if (subs == null) return;
-        for (Integer id : subs.keySet()) send(id, msg);
+        for (ChannelRegistry.Subscriber sub : channelSubs.subscribers(channel)) send(sub.connectionId, msg);
     }
 
 
     @Override
     public void disconnect(int connectionId) {
         ConnectionHandler<T> h = handlers.remove(connectionId);
-        for (ConcurrentHashMap<Integer, String> subs : channelSubs.values()) {
-            subs.remove(connectionId);
-        }
+        unsubscribeAll(connectionId);
 
         if (h != null) {
             try {
                 if (h instanceof NonBlockingConnectionHandler) {
+                    //the frames sent before the disconnect (ERROR, RECEIPT) are still written
+                    ((NonBlockingConnectionHandler<?>) h).closeWhenFlushed();
                     return;
                 }
                 h.close();
@@ -74,7 +103,35 @@ public class ConnectionsImpl<T> implements Connections<T> {
         }
     }
 
-    public Map<Integer, String> getSubscribers(String channel) {
-        return channelSubs.get(channel);
+    /**
+     * Forgets a connection whose handler closed by itself (the client went away or stayed silent),
+     * without closing it again.
+     */
+    public void connectionClosed(int connectionId) {
+        handlers.remove(connectionId);
+        unsubscribeAll(connectionId);
+    }
+
+    /**
+     * See {@link ConnectionHandler#afterFlush}, the task is dropped if the connection is gone.
+     */
+    public void afterFlush(int connectionId, Runnable task) {
+        ConnectionHandler<T> h = handlers.get(connectionId);
+        if (h != null) h.afterFlush(task);
+    }
+
+    /**
+     * Starts the heart-beats negotiated by the protocol, see {@link ConnectionHandler#startHeartbeat}.
+     */
+    public void startHeartbeat(int connectionId, long sendEveryMillis, long expectEveryMillis) {
+        ConnectionHandler<T> h = handlers.get(connectionId);
+        if (h != null) h.startHeartbeat(sendEveryMillis, expectEveryMillis);
+    }
+
+    /**
+     * @return an immutable snapshot of the channel's subscribers, empty if there are none
+     */
+    public ChannelRegistry.Subscriber[] getSubscribers(String channel) {
+        return channelSubs.subscribers(channel);
     }
 }
@@ -0,0 +1,114 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel: a ring of buckets, one per tick, and a single thread that advances one bucket
+ * every tick and runs the timeouts that are due in it. Scheduling and cancelling are O(1) whatever the
+ * number of timeouts, which is what per connection timers need with many connections. Timeouts fire
+ * up to one tick late, tasks run on the wheel's thread and must be short.
+ */
+public class HashedWheelTimer implements Runnable {
+
+    /**
+     * A scheduled task, cancelled ones are dropped when the wheel reaches their bucket.
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline; //in nanos since the wheel started
+        private long rounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Timeout>[] wheel;
+    private final int mask;
+    // timeouts scheduled by other threads, moved into the wheel by the wheel's thread at every tick
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final long startNanos = System.nanoTime();
+    private long tick = 0; //only touched by the wheel's thread
+    private volatile boolean running = true;
+
+    /**
+     * @param tickMillis the length of a tick, the resolution of the timer
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HashedWheelTimer(long tickMillis, int wheelSize) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.wheel = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Runs the task once after the given delay, on the wheel's thread.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + unit.toNanos(delay));
+        added.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long sleep = (tick + 1) * tickNanos - (System.nanoTime() - startNanos);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+            transferAdded();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.cancelled) continue;
+            long ticks = Math.max(timeout.deadline / tickNanos, tick); //one that is already due goes in this tick
+            timeout.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket) {
+        for (int i = bucket.size(); i > 0; i--) {
+            Timeout timeout = bucket.poll();
+            if (timeout.cancelled) continue;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                bucket.add(timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+}
@@ -0,0 +1,15 @@
+package bgu.spl.net.srv;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The pending tasks of a single actor. Any thread may add tasks, only the thread that currently
+ * holds the scheduled flag removes them, see {@link MailboxThreadPool}.
+ */
+public class Mailbox {
+
+    /*package*/ final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    /*package*/ final AtomicBoolean scheduled = new AtomicBoolean(false);
+}
@@ -0,0 +1,53 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A lock free alternative to {@link ActorThreadPool}. Every actor owns a {@link Mailbox}, submitting
+ * adds the task to it and hands the mailbox to the executor only if it was idle. The thread that
+ * runs the mailbox drains up to {@code batchSize} tasks before giving the thread back, so a busy
+ * actor pays for one executor handoff per batch instead of one per task.
+ */
+public class MailboxThreadPool implements ActorExecutor {
+
+    private final ExecutorService threads;
+    private final int batchSize;
+
+    public MailboxThreadPool(int threads, int batchSize) {
+        this.threads = Executors.newFixedThreadPool(threads);
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void submit(Mailbox mailbox, Runnable r) {
+        mailbox.tasks.add(r);
+        schedule(mailbox);
+    }
+
+    @Override
+    public void shutdown() {
+        threads.shutdownNow();
+    }
+
+    private void schedule(Mailbox mailbox) {
+        if (mailbox.scheduled.compareAndSet(false, true)) {
+            threads.execute(() -> drain(mailbox));
+        }
+    }
+
+    private void drain(Mailbox mailbox) {
+        try {
+            Runnable r;
+            for (int i = 0; i < batchSize && (r = mailbox.tasks.poll()) != null; i++) {
+                r.run();
+            }
+        } finally {
+            mailbox.scheduled.set(false);
+            //tasks added while we were running (or left over from the batch) found the mailbox scheduled
+            if (!mailbox.tasks.isEmpty()) {
+                schedule(mailbox);
+            }
+        }
+    }
+}
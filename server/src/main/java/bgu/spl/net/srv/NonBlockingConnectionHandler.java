@@ -7,72 +7,260 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<String> {
 
-    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    // the receive buffer of a connection adapts between these sizes (powers of two)
+    private static final int MIN_READ_BUFFER = 1 << 11; //2k
+    private static final int INITIAL_READ_BUFFER = 1 << 13; //8k
+    private static final int MAX_READ_BUFFER = 1 << 16; //64k
+    private static final byte[] HEARTBEAT = {'\n'};
+    // a client that sends nothing for this many of its negotiated heart-beat intervals is considered dead
+    private static final int SILENT_INTERVALS = 2;
 
     private final StompMessagingProtocol<String> protocol;
     private final StompEncoderDecoder encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    // guarded by its own monitor, together with queuedFrames, queuedBytes, inFlight, flushTasks and closing
+    private final ArrayDeque<ByteBuffer[]> writeQueue = new ArrayDeque<>();
+    private int queuedFrames = 0;
+    private long queuedBytes = 0;
+    // the frames at the head of the queue that the selector thread is writing without holding the monitor
+    private int inFlight = 0;
+    // afterFlush tasks, handed to the mailbox when the queue is drained
+    private final List<Runnable> flushTasks = new ArrayList<>();
+    // set by the DISCONNECT policy and by closeWhenFlushed, the connection closes once the queue is written
+    private boolean closing = false;
+    // true from the first send into an empty queue until continueWrite drains it
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final SelectorLoop loop;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final Mailbox mailbox = new Mailbox();
+    private final int writeBudget;
+    private final WriteStats writeStats;
+    private final OutboundLimits limits;
+    private int connectionId;
+    private ConnectionsImpl<String> connections;
+    private ByteBuffer[] gathered = new ByteBuffer[16]; //only touched by the selector thread
+    private final int readBudget;
+    private final ReadStats readStats;
+    private final BufferPool bufferPool;
+    private final ReadStats connectionReadStats = new ReadStats();
+    private int readBufferSize = INITIAL_READ_BUFFER; //only touched by the selector thread
+    private boolean lastReadSmall = false; //only touched by the selector thread
+    private volatile long lastReadNanos = System.nanoTime();
+    private volatile long lastSendNanos = System.nanoTime();
+    private volatile HashedWheelTimer.Timeout heartbeatTimeout;
+    private volatile HashedWheelTimer.Timeout silenceTimeout;
 
     public NonBlockingConnectionHandler(
             StompEncoderDecoder reader,
             StompMessagingProtocol<String> protocol,
             SocketChannel chan,
-            Reactor reactor) {
+            SelectorLoop loop,
+            int writeBudget,
+            WriteStats writeStats,
+            OutboundLimits limits,
+            int readBudget,
+            ReadStats readStats,
+            BufferPool bufferPool) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
+        this.writeBudget = writeBudget;
+        this.writeStats = writeStats;
+        this.limits = limits;
+        this.readBudget = readBudget;
+        this.readStats = readStats;
+        this.bufferPool = bufferPool;
     }
 
     public void start(int connectionId, ConnectionsImpl<String> connections) {
+        this.connectionId = connectionId;
+        this.connections = connections;
         protocol.start(connectionId, connections);
     }
 
+    /**
+     * Reads until the socket is drained (a read that does not fill its buffer) or the read budget of this
+     * event is used up, and returns a single task that decodes everything that was read.
+     */
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        List<ByteBuffer> chunks = new ArrayList<>(2);
+        ByteBuffer buf = bufferPool.lease(readBufferSize);
+        int reads = 0;
+        long total = 0;
+        boolean eof = false;
 
-        boolean success = false;
         try {
-            success = chan.read(buf) != -1;
+            while (true) {
+                int n = chan.read(buf);
+                reads++;
+                if (n < 0) {
+                    eof = true;
+                    break;
+                }
+                total += n;
+                if (buf.hasRemaining() || total >= readBudget) break;
+                //the buffer is full so there may be more, go on in a new one
+                buf.flip();
+                chunks.add(buf);
+                buf = bufferPool.lease(readBufferSize);
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
+            eof = true;
         }
 
-        if (success) {
-            buf.flip();
-            return () -> {
-                try {
-                    while (buf.hasRemaining()) {
-                        String nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            protocol.process(nextMessage);
-                        }
-                    }
-                } finally {
-                    releaseBuffer(buf);
-                }
-            };
+        buf.flip();
+        if (buf.hasRemaining()) {
+            chunks.add(buf);
         } else {
-            releaseBuffer(buf);
+            bufferPool.release(buf);
+        }
+        connectionReadStats.record(reads, total);
+        if (total > 0) {
+            lastReadNanos = System.nanoTime();
+        }
+        adaptReadBufferSize(total);
+
+        Runnable task = chunks.isEmpty() ? null : () -> {
+            try {
+                for (ByteBuffer chunk : chunks) {
+                    encdec.decodeNextFrames(chunk, protocol::process);
+                }
+            } finally {
+                //also the chunks after one whose frame threw, they are never processed
+                for (ByteBuffer chunk : chunks) {
+                    bufferPool.release(chunk);
+                }
+            }
+        };
+        if (eof) {
+            //the last frames are processed before the protocol hears about the close
+            if (task != null) loop.submit(this, task);
             close();
             return null;
         }
+        return task;
+    }
+
+    /**
+     * Grows the receive buffer as soon as an event fills it and shrinks it after two events in a row
+     * that would have fit in half of it, so connections that send large frames need fewer reads
+     * and idle connections hold small buffers.
+     */
+    private void adaptReadBufferSize(long bytesRead) {
+        if (bytesRead >= readBufferSize) {
+            readBufferSize = Math.min(readBufferSize << 1, MAX_READ_BUFFER);
+            lastReadSmall = false;
+        } else if (bytesRead <= readBufferSize >> 1) {
+            if (lastReadSmall) {
+                readBufferSize = Math.max(readBufferSize >> 1, MIN_READ_BUFFER);
+                lastReadSmall = false;
+            } else {
+                lastReadSmall = true;
+            }
+        } else {
+            lastReadSmall = false;
+        }
+    }
 
+    /**
+     * @return the read counters of this connection
+     */
+    public ReadStats getReadStats() {
+        return connectionReadStats;
+    }
+
+    /**
+     * Starts the heart-beat timers on the loop's timer wheel. Each direction has a single timeout that
+     * looks at the last send (or read) time when it fires and schedules itself again for the moment the
+     * interval would run out, so sending and reading only write a timestamp.
+     */
+    @Override
+    public void startHeartbeat(long sendEveryMillis, long expectEveryMillis) {
+        if (sendEveryMillis > 0) {
+            heartbeat(TimeUnit.MILLISECONDS.toNanos(sendEveryMillis));
+        }
+        if (expectEveryMillis > 0) {
+            checkSilence(TimeUnit.MILLISECONDS.toNanos(expectEveryMillis) * SILENT_INTERVALS);
+        }
+    }
+
+    private void heartbeat(long intervalNanos) {
+        if (closed.get()) return;
+        long quiet = System.nanoTime() - lastSendNanos;
+        if (quiet >= intervalNanos) {
+            sendEncoded(ByteBuffer.wrap(HEARTBEAT));
+            quiet = 0;
+        }
+        heartbeatTimeout = loop.getTimer().schedule(
+                () -> heartbeat(intervalNanos), intervalNanos - quiet, TimeUnit.NANOSECONDS);
+    }
+
+    private void checkSilence(long limitNanos) {
+        if (closed.get()) return;
+        long silent = System.nanoTime() - lastReadNanos;
+        if (silent >= limitNanos) {
+            close();
+            return;
+        }
+        silenceTimeout = loop.getTimer().schedule(
+                () -> checkSilence(limitNanos), limitNanos - silent, TimeUnit.NANOSECONDS);
     }
 
     public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        cancel(heartbeatTimeout);
+        cancel(silenceTimeout);
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            loop.connectionClosed();
+            readStats.add(connectionReadStats);
+            //behind the frames that are still waiting in the mailbox, so none of them can subscribe again after it
+            loop.submit(this, () -> {
+                protocol.connectionClosed();
+                connections.connectionClosed(connectionId);
+            });
+        }
+    }
+
+    private static void cancel(HashedWheelTimer.Timeout timeout) {
+        if (timeout != null) timeout.cancel();
+    }
+
+    @Override
+    public void afterFlush(Runnable task) {
+        synchronized (writeQueue) {
+            if (closing || closed.get()) return;
+            if (!writeQueue.isEmpty()) {
+                flushTasks.add(task);
+                return;
+            }
+        }
+        loop.submit(this, task);
+    }
+
+    /**
+     * Closes the connection once the frames queued so far are written, frames sent after this are dropped.
+     */
+    public void closeWhenFlushed() {
+        synchronized (writeQueue) {
+            closing = true;
+        }
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.scheduleWrite(this);
         }
     }
 
@@ -80,45 +268,165 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<String
         return !chan.isOpen();
     }
 
+    /**
+     * @return true from the moment a write is scheduled until the write queue is drained
+     */
+    /*package*/ boolean isWriteScheduled() {
+        return writeScheduled.get();
+    }
+
+    /**
+     * Drains the write queue using gathering writes: queued frames are collected until they reach
+     * the write budget and are handed to a single {@code write(ByteBuffer[])} call. The monitor is only
+     * held to gather and to retire frames, so senders never wait for the socket; the gathered frames
+     * stay at the head of the queue and the slow consumer policies leave them alone meanwhile.
+     */
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
-            try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
+        while (true) {
+            int parts = 0;
+            int frames = 0;
+            synchronized (writeQueue) {
+                if (writeQueue.isEmpty()) {
+                    if (!protocol.shouldTerminate() && !closing) {
+                        loop.updateInterestedOps(chan, SelectionKey.OP_READ);
+                        writeScheduled.set(false);
+                        for (Runnable task : flushTasks) {
+                            loop.submit(this, task);
+                        }
+                        flushTasks.clear();
+                        return;
+                    }
+                    break;
                 }
+                long pending = 0;
+                for (ByteBuffer[] frame : writeQueue) {
+                    if (frames > 0 && pending + remaining(frame) > writeBudget) break;
+                    if (parts + frame.length > gathered.length) {
+                        gathered = Arrays.copyOf(gathered, Math.max(gathered.length * 2, parts + frame.length));
+                    }
+                    for (ByteBuffer part : frame) {
+                        gathered[parts++] = part;
+                    }
+                    pending += remaining(frame);
+                    frames++;
+                }
+                inFlight = frames;
+            }
+
+            long written;
+            try {
+                written = chan.write(gathered, 0, parts);
             } catch (IOException ex) {
                 ex.printStackTrace();
                 close();
+                return;
+            } finally {
+                Arrays.fill(gathered, 0, parts, null);
+            }
+
+            int completed = 0;
+            synchronized (writeQueue) {
+                while (completed < frames && remaining(writeQueue.peek()) == 0) {
+                    writeQueue.remove();
+                    completed++;
+                }
+                inFlight = 0;
+                queuedFrames -= completed;
+                queuedBytes -= written;
+            }
+            writeStats.record(completed, written);
+            if (completed < frames) {
+                return; //the socket buffer is full, wait for the next OP_WRITE
             }
         }
+        close();
+    }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+    private static long remaining(ByteBuffer[] frame) {
+        long remaining = 0;
+        for (ByteBuffer part : frame) {
+            remaining += part.remaining();
         }
+        return remaining;
+    }
+
+    @Override
+    public void send (String msg) {
+        sendEncoded(ByteBuffer.wrap(encdec.encode(msg)));
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    /**
+     * Queues a frame for writing. When the queue is over its {@link OutboundLimits} the connection's
+     * slow consumer policy decides what is dropped, so a stalled client holds a bounded amount of memory.
+     */
+    @Override
+    public void sendEncoded(ByteBuffer... frame) {
+        long size = remaining(frame);
+        boolean disconnect = false;
+        synchronized (writeQueue) {
+            if (closing || closed.get()) return;
+            //a frame is always accepted into an empty queue, however large it is
+            if (!writeQueue.isEmpty() && limits.exceeded(queuedFrames, queuedBytes, size)) {
+                switch (limits.getPolicy()) {
+                    case DROP_NEWEST:
+                        limits.recordDroppedNewest();
+                        return;
+                    case DROP_OLDEST:
+                        dropOldest(size);
+                        break;
+                    default:
+                        limits.recordDisconnect();
+                        discardQueued();
+                        frame = new ByteBuffer[]{ ByteBuffer.wrap(encdec.encode(limits.slowConsumerError())) };
+                        size = remaining(frame);
+                        closing = true;
+                        disconnect = true;
+                }
+            }
+            writeQueue.add(frame);
+            queuedFrames++;
+            queuedBytes += size;
+        }
+        lastSendNanos = System.nanoTime();
+        if (writeScheduled.compareAndSet(false, true)) {
+            loop.scheduleWrite(this);
+        }
+        if (disconnect) {
+            connections.disconnect(connectionId); //no more frames are routed here
         }
+    }
 
-        buff.clear();
-        return buff;
+    //the head of the queue may already be partly written and the frames in flight are being written,
+    //so neither is ever dropped
+    private void dropOldest(long size) {
+        ByteBuffer[][] kept = new ByteBuffer[Math.max(1, inFlight)][];
+        for (int i = 0; i < kept.length; i++) {
+            kept[i] = writeQueue.poll();
+        }
+        int dropped = 0;
+        while (!writeQueue.isEmpty() && limits.exceeded(queuedFrames, queuedBytes, size)) {
+            queuedBytes -= remaining(writeQueue.poll());
+            queuedFrames--;
+            dropped++;
+        }
+        for (int i = kept.length - 1; i >= 0; i--) {
+            if (kept[i] != null) writeQueue.addFirst(kept[i]);
+        }
+        limits.recordDroppedOldest(dropped);
     }
 
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+    private void discardQueued() {
+        while (writeQueue.size() > Math.max(1, inFlight)) {
+            queuedBytes -= remaining(writeQueue.pollLast());
+            queuedFrames--;
+        }
     }
 
-    @Override
-    public void send (String msg) {
-        writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    /*package*/ Mailbox getMailbox() {
+        return mailbox;
+    }
+
+    /*package*/ SocketChannel getChannel() {
+        return chan;
     }
 }
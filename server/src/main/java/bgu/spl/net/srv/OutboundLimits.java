@@ -0,0 +1,105 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per connection limits on the frames waiting to be written, shared by all the connections of the reactor
+ * together with counters of how often each slow consumer policy kicked in.
+ */
+public class OutboundLimits {
+
+    /**
+     * What to do with a frame that would take a connection's queue over its limits.
+     */
+    public enum SlowConsumerPolicy {
+        /** send an ERROR frame instead of the queued frames and close the connection once it is written */
+        DISCONNECT,
+        /** drop queued frames, oldest first, to make room for the new one */
+        DROP_OLDEST,
+        /** drop the new frame */
+        DROP_NEWEST
+    }
+
+    private final long maxBytes;
+    private final int maxFrames;
+    private final SlowConsumerPolicy policy;
+
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder droppedOldest = new LongAdder();
+    private final LongAdder droppedNewest = new LongAdder();
+
+    public OutboundLimits(long maxBytes, int maxFrames, SlowConsumerPolicy policy) {
+        this.maxBytes = maxBytes;
+        this.maxFrames = maxFrames;
+        this.policy = policy;
+    }
+
+    /**
+     * The limits set with -Dreactor.maxQueuedFrames=&lt;frames&gt;, -Dreactor.maxQueuedBytes=&lt;bytes&gt; and
+     * -Dreactor.slowConsumer=disconnect|drop_oldest|drop_newest, they apply to every server mode.
+     */
+    public static OutboundLimits fromProperties() {
+        return new OutboundLimits(
+                Long.getLong("reactor.maxQueuedBytes", 4L << 20),
+                Integer.getInteger("reactor.maxQueuedFrames", 10000),
+                SlowConsumerPolicy.valueOf(System.getProperty("reactor.slowConsumer", "disconnect").toUpperCase()));
+    }
+
+    /**
+     * @return true if adding a frame of the given size to a queue of the given size would exceed the limits
+     */
+    public boolean exceeded(int queuedFrames, long queuedBytes, long frameBytes) {
+        return queuedFrames + 1 > maxFrames || queuedBytes + frameBytes > maxBytes;
+    }
+
+    /**
+     * @return the ERROR frame a connection gets when the DISCONNECT policy closes it
+     */
+    /*package*/ String slowConsumerError() {
+        return "ERROR\nmessage:Slow consumer\n\n" +
+                "The outbound queue went over its limit of " + maxFrames + " frames or " +
+                maxBytes + " bytes, the connection is closed\n";
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    public SlowConsumerPolicy getPolicy() {
+        return policy;
+    }
+
+    /*package*/ void recordDisconnect() {
+        disconnects.increment();
+    }
+
+    /*package*/ void recordDroppedOldest(int frames) {
+        droppedOldest.add(frames);
+    }
+
+    /*package*/ void recordDroppedNewest() {
+        droppedNewest.increment();
+    }
+
+    public long getDisconnects() {
+        return disconnects.sum();
+    }
+
+    public long getDroppedOldest() {
+        return droppedOldest.sum();
+    }
+
+    public long getDroppedNewest() {
+        return droppedNewest.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("policy=%s maxFrames=%d maxBytes=%d disconnects=%d droppedOldest=%d droppedNewest=%d",
+                policy, maxFrames, maxBytes, getDisconnects(), getDroppedOldest(), getDroppedNewest());
+    }
+}
@@ -4,136 +4,192 @@ import bgu.spl.net.impl.stomp.StompEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
+/**
+ * A boss/worker reactor: the thread that calls serve() accepts connections and hands each one to
+ * the least loaded of several selector loops, every loop runs on its own thread with its own selector.
+ * Protocol processing is done by a separate actor thread pool.
+ */
 public class Reactor<T> implements Server<T> {
 
     private final int port;
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<StompEncoderDecoder> readerFactory;
-    private final ActorThreadPool pool;
-    private Selector selector;
+    private final ActorExecutor pool;
+    private final SelectorLoop[] loops;
+    private final Thread[] loopThreads;
+    private int nextLoop = 0; //only used by the accepting thread
+    private volatile ServerSocketChannel serverSock;
     private final ConnectionsImpl<String> connections = new ConnectionsImpl<>();
-    private final java.util.concurrent.atomic.AtomicInteger nextId = new java.util.concurrent.atomic.AtomicInteger(0);
+    private final AtomicInteger nextId = new AtomicInteger(0);
+
+    // upper bound (in bytes) of a single gathering write, set with -Dreactor.writeBudget=<bytes>
+    private final int writeBudget = Integer.getInteger("reactor.writeBudget", 1 << 16);
+    private final WriteStats writeStats = new WriteStats();
+    // upper bound (in bytes) of what is read from one connection in one readiness event, set with -Dreactor.readBudget=<bytes>
+    private final int readBudget = Integer.getInteger("reactor.readBudget", 1 << 18);
+    private final ReadStats readStats = new ReadStats();
+    // receive buffers from 2k to 64k, the direct memory kept while unused is capped with
+    // -Dreactor.bufferPoolMaxBytes=<bytes>
+    private final BufferPool bufferPool = new BufferPool(1 << 11, 1 << 16,
+            Long.getLong("reactor.bufferPoolMaxBytes", 64L << 20));
+    // per connection outbound queue limits, see OutboundLimits.fromProperties
+    private final OutboundLimits outboundLimits = OutboundLimits.fromProperties();
+    // the heart-beat and silence timers of all the connections, with a resolution of
+    // -Dreactor.timerTickMillis=<millis> on a wheel of -Dreactor.timerWheelSize=<buckets>
+    private final HashedWheelTimer timer = new HashedWheelTimer(
+            Long.getLong("reactor.timerTickMillis", 100),
+            Integer.getInteger("reactor.timerWheelSize", 512));
 
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    public Reactor(
+            int numThreads,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<StompEncoderDecoder> readerFactory) {
+        this(numThreads, 1, port, protocolFactory, readerFactory);
+    }
 
     public Reactor(
             int numThreads,
+            int numSelectors,
             int port,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
             Supplier<StompEncoderDecoder> readerFactory) {
 
-        this.pool = new ActorThreadPool(numThreads);
+        this.pool = createActorExecutor(numThreads);
+        this.loops = new SelectorLoop[numSelectors];
+        this.loopThreads = new Thread[numSelectors];
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
     }
 
+    /**
+     * the actor engine is chosen with -Dreactor.actors=mailbox|locking, mailbox (the lock free
+     * {@link MailboxThreadPool}) is the default and locking is the original {@link ActorThreadPool}.
+     */
+    private static ActorExecutor createActorExecutor(int numThreads) {
+        String engine = System.getProperty("reactor.actors", "mailbox");
+        if (engine.equals("locking")) {
+            return new ActorThreadPool(numThreads);
+        }
+        return new MailboxThreadPool(numThreads, Integer.getInteger("reactor.mailboxBatch", 16));
+    }
+
     @Override
     public void serve() {
-	selectorThread = Thread.currentThread();
-        try (Selector selector = Selector.open();
-                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+
+            this.serverSock = serverSock; //just to be able to close
 
-            this.selector = selector; //just to be able to close
+            Thread timerThread = new Thread(timer, "timer-wheel");
+            timerThread.setDaemon(true);
+            timerThread.start();
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new SelectorLoop(pool, timer);
+                loopThreads[i] = new Thread(loops[i], "selector-" + i);
+                loopThreads[i].start();
+            }
 
             serverSock.bind(new InetSocketAddress(port));
-            serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
 			System.out.println("Server started");
 
             while (!Thread.currentThread().isInterrupted()) {
-
-                selector.select();
-                runSelectionThreadTasks();
-
-                for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
-                    }
-                }
-
-                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
-
+                handleAccept(serverSock.accept());
             }
 
-        } catch (ClosedSelectorException ex) {
+        } catch (ClosedChannelException ex) {
             //do nothing - server was requested to be closed
         } catch (IOException ex) {
             //this is an error
             ex.printStackTrace();
+        } finally {
+            closeLoops();
+            timer.stop();
         }
 
         System.out.println("server closed!!!");
+        System.out.println("read stats: " + readStats);
+        System.out.println("write stats: " + writeStats);
+        System.out.println("buffer pool: " + bufferPool);
+        System.out.println("outbound limits: " + outboundLimits);
         pool.shutdown();
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
-            selector.wakeup();
-        }
-    }
-
-
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
-        SocketChannel clientChan = serverChan.accept();
+    private void handleAccept(SocketChannel clientChan) throws IOException {
         clientChan.configureBlocking(false);
+        SelectorLoop loop = chooseLoop();
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
                 readerFactory.get(),
                 (StompMessagingProtocol<String>) protocolFactory.get(),
                 clientChan,
-                this);
+                loop,
+                writeBudget,
+                writeStats,
+                outboundLimits,
+                readBudget,
+                readStats,
+                bufferPool);
         int connectionId = nextId.getAndIncrement();
         connections.addConnection(connectionId, (ConnectionHandler<String>) handler);
         handler.start(connectionId, connections);
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+        loop.register(clientChan, handler);
     }
 
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<String> handler = (NonBlockingConnectionHandler<String>) key.attachment();
-        
-
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
+    /**
+     * @return the loop with the fewest open connections, ties are broken round robin
+     */
+    private SelectorLoop chooseLoop() {
+        SelectorLoop best = null;
+        for (int i = 0; i < loops.length; i++) {
+            SelectorLoop loop = loops[(nextLoop + i) % loops.length];
+            if (best == null || loop.getConnectionCount() < best.getConnectionCount()) {
+                best = loop;
             }
         }
+        nextLoop = (nextLoop + 1) % loops.length;
+        return best;
+    }
 
-	    if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
+    private void closeLoops() {
+        for (int i = 0; i < loops.length; i++) {
+            if (loops[i] == null) continue;
+            try {
+                loops[i].close();
+                loopThreads[i].join();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
-        }
+    public WriteStats getWriteStats() {
+        return writeStats;
+    }
+
+    public ReadStats getReadStats() {
+        return readStats;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public OutboundLimits getOutboundLimits() {
+        return outboundLimits;
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        ServerSocketChannel sock = serverSock;
+        if (sock != null) sock.close();
     }
 
 }
@@ -0,0 +1,58 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the reads done by the reactor, every connection keeps its own and adds them
+ * to the reactor wide counters when it closes.
+ */
+public class ReadStats {
+
+    private final LongAdder events = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * @param readCalls the number of read syscalls done for one readiness event
+     * @param bytesRead the number of bytes they returned
+     */
+    public void record(int readCalls, long bytesRead) {
+        events.increment();
+        reads.add(readCalls);
+        bytes.add(bytesRead);
+    }
+
+    public void add(ReadStats other) {
+        events.add(other.getEvents());
+        reads.add(other.getReads());
+        bytes.add(other.getBytes());
+    }
+
+    public long getEvents() {
+        return events.sum();
+    }
+
+    public long getReads() {
+        return reads.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public double getReadsPerEvent() {
+        long e = events.sum();
+        return e == 0 ? 0 : (double) reads.sum() / e;
+    }
+
+    public double getBytesPerEvent() {
+        long e = events.sum();
+        return e == 0 ? 0 : (double) bytes.sum() / e;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("events=%d reads=%d bytes=%d reads/event=%.2f bytes/event=%.1f",
+                getEvents(), getReads(), getBytes(), getReadsPerEvent(), getBytesPerEvent());
+    }
+}
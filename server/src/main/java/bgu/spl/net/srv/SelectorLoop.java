@@ -0,0 +1,180 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One selector thread of the reactor. It owns a selector and does all the reads and writes of the
+ * connections the acceptor handed to it, protocol processing goes to the shared actor thread pool.
+ */
+public class SelectorLoop implements Runnable {
+
+    private final Selector selector;
+    private final ActorExecutor pool;
+    private final HashedWheelTimer timer;
+    private volatile Thread selectorThread;
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    // connections that got new frames to write, each one is queued at most once until its queue drains
+    private final ConcurrentLinkedQueue<NonBlockingConnectionHandler<?>> pendingWrites = new ConcurrentLinkedQueue<>();
+    // set while a wakeup is on its way to the selector, so that a burst of sends wakes it only once
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+    public SelectorLoop(ActorExecutor pool, HashedWheelTimer timer) throws IOException {
+        this.selector = Selector.open();
+        this.pool = pool;
+        this.timer = timer;
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                selector.select();
+                wakeupPending.set(false); //must happen before draining, see wakeupSelector
+                runSelectionThreadTasks();
+                runPendingWrites();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid()) {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+            }
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Hands a newly accepted connection to this loop, the channel is registered by the selector thread.
+     */
+    public void register(SocketChannel chan, NonBlockingConnectionHandler<?> handler) {
+        connectionCount.incrementAndGet();
+        selectorTasks.add(() -> {
+            try {
+                //frames may have been sent to the connection before it got here, their write was scheduled
+                //while the channel had no key yet
+                int ops = handler.isWriteScheduled()
+                        ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ;
+                chan.register(selector, ops, handler);
+            } catch (ClosedChannelException ex) {
+                handler.close();
+            }
+        });
+        wakeupSelector();
+    }
+
+    /**
+     * @return the number of open connections handled by this loop
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /*package*/ void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    /*package*/ HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Runs a task of the connection on the actor pool, after the frames that are already being processed.
+     */
+    /*package*/ void submit(NonBlockingConnectionHandler<?> handler, Runnable task) {
+        pool.submit(handler.getMailbox(), task);
+    }
+
+    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
+        final SelectionKey key = chan.keyFor(selector);
+        if (key == null) return; //not registered yet (interest is set on registration) or already closed
+        if (Thread.currentThread() == selectorThread) {
+            if (key.isValid()) key.interestOps(ops);
+        } else {
+            selectorTasks.add(() -> {
+                if (key.isValid()) key.interestOps(ops);
+            });
+            wakeupSelector();
+        }
+    }
+
+    /**
+     * Asks the selector thread to start writing the queued frames of the given handler.
+     * The handler calls this only when it moves from "nothing to write" to "write pending",
+     * so a fan-out to many connections costs one queue entry per connection and one wakeup in total.
+     */
+    /*package*/ void scheduleWrite(NonBlockingConnectionHandler<?> handler) {
+        if (Thread.currentThread() == selectorThread) {
+            enableWrite(handler);
+        } else {
+            pendingWrites.add(handler);
+            wakeupSelector();
+        }
+    }
+
+    private void wakeupSelector() {
+        //the flag is cleared by the selector thread right after select() returns and before it drains
+        //its queues, so anything queued after the drain will find it cleared and wake the selector again
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void enableWrite(NonBlockingConnectionHandler<?> handler) {
+        SelectionKey key = handler.getChannel().keyFor(selector);
+        //without a key the channel is either closed or not registered yet, then register sets OP_WRITE
+        if (key != null && key.isValid()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        NonBlockingConnectionHandler<?> handler = (NonBlockingConnectionHandler<?>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                pool.submit(handler.getMailbox(), task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+        }
+    }
+
+    private void runPendingWrites() {
+        NonBlockingConnectionHandler<?> handler;
+        while ((handler = pendingWrites.poll()) != null) {
+            enableWrite(handler);
+        }
+    }
+
+    public void close() throws IOException {
+        selector.close();
+    }
+}
@@ -5,6 +5,8 @@ import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.MessagingProtocol;
 import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 import java.util.function.Supplier;
 
 public interface Server<T> extends Closeable {
@@ -29,8 +31,38 @@ public interface Server<T> extends Closeable {
 
         return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
             @Override
-            protected void execute(BlockingConnectionHandler<T>  handler) {
-                new Thread(handler).start();
+            protected void execute(Runnable task) {
+                new Thread(task).start();
+            }
+        };
+
+    }
+
+    /**
+     *This function returns a new instance of a thread per client server that runs every client on a virtual thread.
+     *Virtual threads need Java 21, on older runtimes it falls back to (pooled) platform threads.
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     */
+    public static <T> Server<T>  virtualThreadPerClient(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<StompEncoderDecoder> encoderDecoderFactory) {
+
+        final ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor();
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+            @Override
+            protected void execute(Runnable task) {
+                executor.execute(task);
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                executor.shutdown();
             }
         };
 
@@ -53,4 +85,23 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
     }
 
+    /**
+     * This function returns a new instance of a reactor pattern server with several selector threads
+     * @param nthreads Number of threads available for protocol processing
+     * @param nselectors Number of selector threads doing the socket reads and writes
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            int nselectors,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<StompEncoderDecoder> encoderDecoderFactory) {
+        return new Reactor<T>(nthreads, nselectors, port, protocolFactory, encoderDecoderFactory);
+    }
+
 }
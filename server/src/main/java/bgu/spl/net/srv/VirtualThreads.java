@@ -0,0 +1,26 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads without requiring Java 21 at compile time, the project still targets 1.8.
+ */
+/*package*/ final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return an executor that starts a new virtual thread for each task, or a cached platform
+     * thread pool when the running JVM has no virtual threads
+     */
+    static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            System.out.println("Virtual threads are not available (Java 21 is needed), using platform threads");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for the gathering writes done by the reactor, shared by all of its connections.
+ */
+public class WriteStats {
+
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /**
+     * @param framesCompleted the number of frames that this write finished sending
+     * @param bytesWritten the number of bytes the write syscall accepted
+     */
+    public void record(int framesCompleted, long bytesWritten) {
+        writes.increment();
+        frames.add(framesCompleted);
+        bytes.add(bytesWritten);
+    }
+
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    public long getFrames() {
+        return frames.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public double getFramesPerWrite() {
+        long w = writes.sum();
+        return w == 0 ? 0 : (double) frames.sum() / w;
+    }
+
+    public double getBytesPerWrite() {
+        long w = writes.sum();
+        return w == 0 ? 0 : (double) bytes.sum() / w;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("writes=%d frames=%d bytes=%d frames/write=%.2f bytes/write=%.1f",
+                getWrites(), getFrames(), getBytes(), getFramesPerWrite(), getBytesPerWrite());
+    }
+}